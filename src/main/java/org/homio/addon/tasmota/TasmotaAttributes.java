@@ -0,0 +1,67 @@
+package org.homio.addon.tasmota;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Consumer;
+
+import static org.homio.api.util.JsonUtils.OBJECT_MAPPER;
+
+/**
+ * Device attributes with copy-on-read snapshots. Writers change private working root in place under lock, readers get
+ * immutable snapshot which is shallow copied from working root only when it has changed since last read, so stream of
+ * payloads which nobody reads in between doesn't copy root per message. Child nodes are shared between working root
+ * and snapshots, so they are never modified in place: writers replace them, updateChild() copies child before change.
+ * Published nodes may be shared with other devices (catalogs), so root is not handed out of package, see
+ * TasmotaDeviceService.getAttributes()
+ */
+public final class TasmotaAttributes {
+
+  // guarded by this
+  private final ObjectNode working = OBJECT_MAPPER.createObjectNode();
+  // null when working root has changed since last snapshot
+  private volatile ObjectNode snapshot;
+
+  /**
+   * @return snapshot of attributes root. Must be treated as read-only
+   */
+  @NotNull JsonNode get() {
+    ObjectNode current = snapshot;
+    if (current == null) {
+      synchronized (this) {
+        current = snapshot;
+        if (current == null) {
+          current = shallowCopy(working);
+          snapshot = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Apply changes to root node. Mutator may set or remove root fields, but must not modify existing child nodes
+   */
+  public synchronized void update(@NotNull Consumer<ObjectNode> mutator) {
+    mutator.accept(working);
+    snapshot = null;
+  }
+
+  /**
+   * Apply changes to copy of top-level object node 'key' and put it into root
+   */
+  public synchronized void updateChild(@NotNull String key, @NotNull Consumer<ObjectNode> mutator) {
+    JsonNode child = working.get(key);
+    ObjectNode childCopy = child instanceof ObjectNode objectNode ? shallowCopy(objectNode) : OBJECT_MAPPER.createObjectNode();
+    mutator.accept(childCopy);
+    working.set(key, childCopy);
+    snapshot = null;
+  }
+
+  private static ObjectNode shallowCopy(ObjectNode source) {
+    ObjectNode copy = OBJECT_MAPPER.createObjectNode();
+    copy.setAll(source);
+    return copy;
+  }
+}
@@ -0,0 +1,170 @@
+package org.homio.addon.tasmota;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Fleet-wide store of modules/gpios catalogs and templates. Modules and gpios catalogs are kept per firmware build, one
+ * node per catalog, so devices of same firmware reference one instance and device which firmware catalogs are known
+ * doesn't have to query them. Templates are interned by content while some device references them. Shared nodes must
+ * never be modified, which holds for device attributes as they replace child nodes instead of modifying them
+ */
+public class TasmotaCatalogStore {
+
+  public static final String MODULES = "modules";
+  public static final String GPIOS = "gpios";
+  // devices of same firmware wait for catalogs of first device which queries them
+  private static final long CLAIM_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+  // catalogs arrive in several pages, claim is done once no page has arrived for this time
+  private static final long CLAIM_SETTLE = TimeUnit.SECONDS.toMillis(5);
+
+  // content -> interned node, entry is dropped once no device references the node. Guarded by itself
+  private final Map<JsonNode, WeakReference<JsonNode>> nodes = new WeakHashMap<>();
+  // firmware/catalog -> most complete catalog reported by devices of firmware
+  private final Map<String, JsonNode> catalogs = new ConcurrentHashMap<>();
+  private final Map<String, Claim> claims = new ConcurrentHashMap<>();
+  private final LongAdder skippedQueries = new LongAdder();
+
+  public @NotNull JsonNode intern(@NotNull JsonNode node) {
+    synchronized (nodes) {
+      WeakReference<JsonNode> reference = nodes.get(node);
+      JsonNode interned = reference == null ? null : reference.get();
+      if (interned == null) {
+        nodes.put(node, new WeakReference<>(node));
+        return node;
+      }
+      return interned;
+    }
+  }
+
+  /**
+   * Store (possibly partially received) catalog reported by device of firmware and pass it to devices which wait for it
+   *
+   * @return shared instance to keep in device attributes
+   */
+  public @NotNull JsonNode share(@NotNull String firmware, @NotNull String catalog, @NotNull JsonNode node) {
+    // catalogs arrive in pages, don't replace more complete catalog of other device
+    JsonNode shared = catalogs.merge(firmware + "/" + catalog, node,
+      (current, value) -> value.size() >= current.size() ? value : current);
+    Claim claim = claims.get(firmware);
+    if (claim != null) {
+      claim.lastShare = System.currentTimeMillis();
+      for (Waiter waiter : claim.waiters) {
+        waiter.consumer.accept(catalog, shared);
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Pass cached catalogs of firmware to consumer now, or once device which already queries them reports them.
+   *
+   * @param retry - called if device which queries catalogs doesn't report them in time, waiter has to query them
+   *              itself
+   * @return true if caller has to query catalogs itself
+   */
+  public boolean resolve(@NotNull String firmware,
+                         @NotNull BiConsumer<String, JsonNode> consumer,
+                         @NotNull Runnable retry) {
+    JsonNode modules = catalogs.get(firmware + "/" + MODULES);
+    JsonNode gpios = catalogs.get(firmware + "/" + GPIOS);
+    if (modules != null && gpios != null) {
+      skippedQueries.increment();
+      consumer.accept(MODULES, modules);
+      consumer.accept(GPIOS, gpios);
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    boolean[] owner = new boolean[1];
+    claims.compute(firmware, (key, current) -> {
+      if (current == null) {
+        owner[0] = true;
+        return new Claim(now);
+      }
+      if (now - current.since > CLAIM_TIMEOUT) {
+        // previous owner hasn't reported catalogs, hand its waiters over to new owner
+        owner[0] = true;
+        Claim handover = new Claim(now);
+        handover.waiters.addAll(current.waiters);
+        return handover;
+      }
+      // joined under map lock, so claim which is being completed or expired can't miss the waiter
+      current.waiters.add(new Waiter(consumer, retry));
+      return current;
+    });
+    if (owner[0]) {
+      return true;
+    }
+    skippedQueries.increment();
+    return false;
+  }
+
+  /**
+   * Complete claims which catalogs have settled and expire claims which owner hasn't reported catalogs in time. Waiters
+   * of completed claim get final catalogs, waiters of expired claim query catalogs themselves
+   */
+  public void expireClaims() {
+    long now = System.currentTimeMillis();
+    List<Waiter> retries = new ArrayList<>();
+    for (Map.Entry<String, Claim> entry : claims.entrySet()) {
+      String firmware = entry.getKey();
+      Claim claim = entry.getValue();
+      JsonNode modules = catalogs.get(firmware + "/" + MODULES);
+      JsonNode gpios = catalogs.get(firmware + "/" + GPIOS);
+      if (modules != null && gpios != null && now - claim.lastShare > CLAIM_SETTLE) {
+        if (claims.remove(firmware, claim)) {
+          for (Waiter waiter : claim.waiters) {
+            waiter.consumer.accept(MODULES, modules);
+            waiter.consumer.accept(GPIOS, gpios);
+          }
+        }
+      } else if (now - claim.since > CLAIM_TIMEOUT && now - claim.lastShare > CLAIM_SETTLE) {
+        if (claims.remove(firmware, claim)) {
+          retries.addAll(claim.waiters);
+        }
+      }
+    }
+    for (Waiter waiter : retries) {
+      waiter.retry.run();
+    }
+  }
+
+  public int getCatalogCount() {
+    return catalogs.size();
+  }
+
+  public int getNodeCount() {
+    synchronized (nodes) {
+      return nodes.size();
+    }
+  }
+
+  public long getSkippedQueries() {
+    return skippedQueries.sum();
+  }
+
+  private static final class Claim {
+
+    private final long since;
+    private final List<Waiter> waiters = new CopyOnWriteArrayList<>();
+    private volatile long lastShare;
+
+    private Claim(long since) {
+      this.since = since;
+    }
+  }
+
+  private record Waiter(BiConsumer<String, JsonNode> consumer, Runnable retry) {
+  }
+}
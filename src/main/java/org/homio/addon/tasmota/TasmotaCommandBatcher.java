@@ -0,0 +1,60 @@
+package org.homio.addon.tasmota;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs several Tasmota commands into Backlog payloads. Tasmota executes at most 30 commands from one Backlog and
+ * truncates mqtt commands which exceed input buffer, so commands are split into as few chunks as these limits allow
+ */
+public final class TasmotaCommandBatcher {
+
+  public static final String BACKLOG = "Backlog";
+  public static final int MAX_BACKLOG_COMMANDS = 30;
+  public static final int MAX_BACKLOG_LENGTH = 700;
+  // Backlog is supported by all firmwares since 6.x
+  private static final int MIN_BACKLOG_MAJOR_VERSION = 6;
+
+  private TasmotaCommandBatcher() {
+  }
+
+  public static @NotNull List<String> pack(@NotNull Map<String, String> commands) {
+    List<String> batches = new ArrayList<>();
+    StringBuilder batch = new StringBuilder();
+    int count = 0;
+    for (Map.Entry<String, String> entry : commands.entrySet()) {
+      String command = StringUtils.isEmpty(entry.getValue()) ? entry.getKey() : entry.getKey() + " " + entry.getValue();
+      if (count > 0 && (count == MAX_BACKLOG_COMMANDS || batch.length() + command.length() + 1 > MAX_BACKLOG_LENGTH)) {
+        batches.add(batch.toString());
+        batch.setLength(0);
+        count = 0;
+      }
+      if (count > 0) {
+        batch.append(';');
+      }
+      batch.append(command);
+      count++;
+    }
+    if (count > 0) {
+      batches.add(batch.toString());
+    }
+    return batches;
+  }
+
+  public static boolean isBacklogSupported(@Nullable String firmwareVersion) {
+    if (StringUtils.isEmpty(firmwareVersion)) {
+      return true;
+    }
+    try {
+      int major = Integer.parseInt(StringUtils.substringBefore(firmwareVersion.trim(), "."));
+      return major >= MIN_BACKLOG_MAJOR_VERSION;
+    } catch (NumberFormatException ignore) {
+      return true;
+    }
+  }
+}
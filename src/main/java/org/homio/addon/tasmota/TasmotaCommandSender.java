@@ -0,0 +1,190 @@
+package org.homio.addon.tasmota;
+
+import lombok.extern.log4j.Log4j2;
+import org.homio.api.Context;
+import org.homio.api.ContextBGP.ThreadContext;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Outgoing mqtt commands pipeline. Commands are sent from background task, pending idempotent commands to same topic
+ * are coalesced so only the latest payload is published. Query commands which argument selects reply, i.e. 'status 8'
+ * and 'status 0', are coalesced only with same argument. Not idempotent command closes pending slot of its topic, so
+ * later commands are queued after it and order per topic is kept. Queue is bounded: command is dropped without waiting
+ * if sender can't keep up
+ */
+@Log4j2
+public class TasmotaCommandSender {
+
+  private static final Set<String> NOT_IDEMPOTENT_COMMANDS = Set.of("restart", "reset", "upgrade", "backlog", "backlog0");
+  private static final Set<String> NOT_IDEMPOTENT_VALUES = Set.of("toggle", "blink");
+  private static final Set<String> ARGUMENT_QUERY_COMMANDS = Set.of("status", "modules", "gpios", "gpio");
+
+  private final int capacity;
+  private final BlockingQueue<Command> queue;
+  // slot key -> queued slot which still accepts newer payloads
+  private final Map<String, Slot> openSlots = new ConcurrentHashMap<>();
+  private final BiConsumer<String, byte[]> publisher;
+  private final LongSupplier flushInterval;
+  private final LongAdder dropped = new LongAdder();
+  private volatile boolean running;
+  private ThreadContext<Void> task;
+
+  /**
+   * @param capacity      - max number of pending commands
+   * @param flushInterval - time in ms to wait for more commands before publishing pending ones
+   * @param publisher     - (topic, payload) publisher
+   */
+  public TasmotaCommandSender(int capacity, @NotNull LongSupplier flushInterval, @NotNull BiConsumer<String, byte[]> publisher) {
+    this.capacity = capacity;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.flushInterval = flushInterval;
+    this.publisher = publisher;
+  }
+
+  public static boolean isIdempotent(@NotNull String command, @NotNull String value) {
+    return !NOT_IDEMPOTENT_COMMANDS.contains(command.toLowerCase())
+           && !NOT_IDEMPOTENT_VALUES.contains(value.toLowerCase());
+  }
+
+  public synchronized void start(@NotNull Context context) {
+    if (!running) {
+      running = true;
+      task = context.bgp().builder("tasmota-command-sender").execute(this::run);
+    }
+  }
+
+  public synchronized void stop() {
+    running = false;
+    if (task != null) {
+      task.cancel();
+      task = null;
+    }
+  }
+
+  /**
+   * Queue command for publishing
+   *
+   * @param coalesce - replace payload of not yet published command with same topic
+   * @return false if command has been dropped due to full queue
+   */
+  public boolean send(@NotNull String topic, byte[] payload, boolean coalesce) {
+    String slotKey = slotKey(topic, payload);
+    if (!coalesce) {
+      // commands sent after this one must not be merged into slot queued before it
+      openSlots.remove(slotKey);
+      return enqueue(new Command(topic, slotKey, new Slot(payload)));
+    }
+    Slot[] created = new Slot[1];
+    openSlots.compute(slotKey, (key, slot) -> {
+      if (slot != null) {
+        slot.payload = payload;
+        return slot;
+      }
+      created[0] = new Slot(payload);
+      return created[0];
+    });
+    if (created[0] != null && !enqueue(new Command(topic, slotKey, created[0]))) {
+      openSlots.remove(slotKey, created[0]);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Move not yet published commands of stopped sender to another sender, i.e. when queue capacity has been changed
+   */
+  public void transferTo(@NotNull TasmotaCommandSender target) {
+    List<Command> pending = new ArrayList<>();
+    queue.drainTo(pending);
+    openSlots.clear();
+    for (Command command : pending) {
+      target.send(command.topic(), command.slot().payload, false);
+    }
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  public long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  private boolean enqueue(Command command) {
+    if (queue.offer(command)) {
+      return true;
+    }
+    dropped.increment();
+    log.warn("Tasmota command queue is full. Drop command: {}", command.topic());
+    return false;
+  }
+
+  private void run() {
+    List<Command> batch = new ArrayList<>();
+    while (running) {
+      try {
+        Command first = queue.poll(1, TimeUnit.SECONDS);
+        if (first == null) {
+          continue;
+        }
+        long interval = flushInterval.getAsLong();
+        if (interval > 0) {
+          Thread.sleep(interval);
+        }
+        batch.add(first);
+        queue.drainTo(batch);
+        for (Command command : batch) {
+          // close slot under topic lock, so no payload is written to it after it has been read
+          openSlots.computeIfPresent(command.slotKey(), (key, slot) -> slot == command.slot() ? null : slot);
+          publish(command.topic(), command.slot().payload);
+        }
+        batch.clear();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void publish(String topic, byte[] payload) {
+    try {
+      publisher.accept(topic, payload);
+    } catch (Exception ex) {
+      log.warn("Unable to publish tasmota command: {}", topic, ex);
+    }
+  }
+
+  private static String slotKey(String topic, byte[] payload) {
+    String command = topic.substring(topic.lastIndexOf('/') + 1).toLowerCase();
+    return ARGUMENT_QUERY_COMMANDS.contains(command) ? topic + " " + new String(payload, StandardCharsets.UTF_8) : topic;
+  }
+
+  private record Command(String topic, String slotKey, Slot slot) {
+  }
+
+  private static class Slot {
+
+    private volatile byte[] payload;
+
+    private Slot(byte[] payload) {
+      this.payload = payload;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package org.homio.addon.tasmota;
+
+import org.homio.api.model.device.ConfigDeviceDefinition;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted endpoint -> device definitions index built from definitions loaded by ConfigDeviceDefinitionService.
+ * Definition matches device once device has all definition endpoints, so per device matcher only counts hits of index
+ * postings and keeps matched definitions, instead of scanning every definition on each new endpoint.
+ */
+public class TasmotaDefinitionIndex {
+
+  private static final int[] NO_DEFINITIONS = new int[0];
+
+  private final ConfigDeviceDefinition[] definitions;
+  // endpoint name -> indexes of definitions which require it
+  private final Map<String, int[]> postings;
+  private final int[] requiredCounts;
+
+  public TasmotaDefinitionIndex(@NotNull List<ConfigDeviceDefinition> definitions) {
+    List<ConfigDeviceDefinition> indexed = new ArrayList<>();
+    Map<String, List<Integer>> index = new HashMap<>();
+    List<Integer> counts = new ArrayList<>();
+    for (ConfigDeviceDefinition definition : definitions) {
+      Collection<String> endpoints = definition.getEndpoints();
+      // definitions without endpoints are matched by model only
+      if (endpoints == null || endpoints.isEmpty()) {
+        continue;
+      }
+      Set<String> required = new HashSet<>(endpoints);
+      for (String endpoint : required) {
+        index.computeIfAbsent(endpoint, key -> new ArrayList<>()).add(indexed.size());
+      }
+      counts.add(required.size());
+      indexed.add(definition);
+    }
+    this.definitions = indexed.toArray(new ConfigDeviceDefinition[0]);
+    requiredCounts = counts.stream().mapToInt(Integer::intValue).toArray();
+    postings = new HashMap<>(index.size());
+    index.forEach((endpoint, items) ->
+      postings.put(endpoint, items.stream().mapToInt(Integer::intValue).toArray()));
+  }
+
+  public int getDefinitionCount() {
+    return definitions.length;
+  }
+
+  public @NotNull Matcher matcher() {
+    return new Matcher();
+  }
+
+  /**
+   * Incremental match state of one device
+   */
+  public class Matcher {
+
+    private final int[] hits = new int[requiredCounts.length];
+    private final Set<String> seen = new HashSet<>();
+    private final BitSet candidates = new BitSet(requiredCounts.length);
+
+    private Matcher() {
+    }
+
+    /**
+     * @return true if endpoint completed some definition, i.e. candidate set has changed
+     */
+    public synchronized boolean add(@NotNull String endpoint) {
+      if (!seen.add(endpoint)) {
+        return false;
+      }
+      boolean changed = false;
+      for (int definition : postings.getOrDefault(endpoint, NO_DEFINITIONS)) {
+        if (++hits[definition] == requiredCounts[definition]) {
+          candidates.set(definition);
+          changed = true;
+        }
+      }
+      return changed;
+    }
+
+    /**
+     * @return definitions which endpoints device has all
+     */
+    public synchronized @NotNull List<ConfigDeviceDefinition> getCandidates() {
+      List<ConfigDeviceDefinition> result = new ArrayList<>(candidates.cardinality());
+      for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+        result.add(definitions[i]);
+      }
+      return result;
+    }
+  }
+}
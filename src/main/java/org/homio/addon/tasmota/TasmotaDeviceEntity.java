@@ -42,6 +42,7 @@ import static org.apache.commons.lang3.StringUtils.defaultIfEmpty;
 import static org.apache.commons.lang3.StringUtils.trimToEmpty;
 import static org.homio.addon.tasmota.TasmotaEntrypoint.TASMOTA_COLOR;
 import static org.homio.addon.tasmota.TasmotaEntrypoint.TASMOTA_ICON;
+import static org.homio.api.entity.HasJsonData.LIST_DELIMITER;
 
 @SuppressWarnings("JpaAttributeTypeInspection")
 @Log4j2
@@ -72,29 +73,23 @@ public final class TasmotaDeviceEntity extends DeviceBaseEntity implements
   @UIField(order = 10, hideOnEmpty = true)
   @UIFieldShowOnCondition("return !context.get('compactMode')")
   public String getName() {
-    return optService().map(service ->
-      service.getAttributes().path("Status").path("FriendlyName")
-        .path(0).asText()).orElse(null);
+    return optService().map(service -> service.getSummary().name()).orElse(null);
   }
 
   public void setName(String value) {
     TasmotaProjectService.INSTANCE.publish(this, "DeviceName", value);
+    TasmotaProjectService.INSTANCE.getUiUpdater().interactive(this);
   }
 
   @Override
   public @Nullable String getFirmwareVersion() {
-    String version = optService().map(service ->
-      service.getAttributes().path("StatusFWR").path("Version").asText()).orElse(null);
-    if (version != null && version.contains("(")) {
-      return version.substring(0, version.indexOf("("));
-    }
-    return version;
+    return optService().map(service -> service.getSummary().firmwareVersion()).orElse(null);
   }
 
   @UIField(order = 100, hideOnEmpty = true, type = UIFieldType.HTML, hideInEdit = true)
   public WebAddress getIpAddress() {
     return optService().map(service -> {
-      String ipAddress = service.getAttributes().path("StatusNET").path("IPAddress").asText();
+      String ipAddress = service.getSummary().ipAddress();
       if (StringUtils.isNotEmpty(ipAddress)) {
         return new WebAddress(ipAddress);
       }
@@ -105,25 +100,47 @@ public final class TasmotaDeviceEntity extends DeviceBaseEntity implements
   @UIField(order = 110, hideOnEmpty = true, hideInEdit = true)
   public String getBootCount() {
     return optService().map(service ->
-      service.getAttributes().path("StatusPRM").path("BootCount").asText()).orElse(null);
+      service.getAttribute("StatusPRM", "BootCount").asText()).orElse(null);
   }
 
   @UIField(order = 120, hideOnEmpty = true, hideInEdit = true)
   public String getUptime() {
     return optService().map(service ->
-      service.getAttributes().path("Uptime").asText()).orElse(null);
+      service.getAttribute("Uptime").asText()).orElse(null);
   }
 
   @UIField(order = 120, hideOnEmpty = true)
   @UIFieldSlider(min = 10, max = 3600)
   public Integer getTelePeriod() {
     return optService().map(service ->
-      service.getAttributes().path("StatusLOG").path("TelePeriod").asInt()).orElse(null);
+      service.getAttribute("StatusLOG", "TelePeriod").asInt()).orElse(null);
+  }
+
+  @UIField(order = 130, hideOnEmpty = true, hideInEdit = true)
+  public Long getSuppressedWrites() {
+    return optService().map(TasmotaDeviceService::getSuppressedWrites).orElse(null);
+  }
+
+  @UIField(order = 131, hideOnEmpty = true, hideInEdit = true)
+  public Long getEndpointWrites() {
+    return optService().map(TasmotaDeviceService::getEndpointWrites).orElse(null);
+  }
+
+  @UIField(order = 132, hideOnEmpty = true, hideInEdit = true)
+  public Long getMessageCount() {
+    return optService().map(TasmotaDeviceService::getMessageCount).orElse(null);
   }
 
   public void setTelePeriod(@Min(10) @Max(3600) int value) {
+    // separate idempotent commands instead of Backlog, so dragging slider publishes only the last value
     TasmotaProjectService.INSTANCE.publish(this, "teleperiod", String.valueOf(value));
     TasmotaProjectService.INSTANCE.publish(this, "status", "0");
+    TasmotaProjectService.INSTANCE.getUiUpdater().interactive(this);
+  }
+
+  @JsonIgnore
+  public boolean isBacklogSupported() {
+    return TasmotaCommandBatcher.isBacklogSupported(getFirmwareVersion());
   }
 
   public @NotNull String getFullTopic() {
@@ -135,6 +152,19 @@ public final class TasmotaDeviceEntity extends DeviceBaseEntity implements
     return this;
   }
 
+  /**
+   * Configured endpoints which device has reported, restored on startup
+   */
+  @JsonIgnore
+  public @NotNull List<String> getMaterializedEndpoints() {
+    return getJsonDataList("eps");
+  }
+
+  public TasmotaDeviceEntity setMaterializedEndpoints(@NotNull List<String> endpoints) {
+    setJsonData("eps", String.join(LIST_DELIMITER, endpoints));
+    return this;
+  }
+
   @Override
   public @Nullable Set<String> getConfigurationErrors() {
     return null;
@@ -147,7 +177,12 @@ public final class TasmotaDeviceEntity extends DeviceBaseEntity implements
 
   @Override
   public @NotNull TasmotaDeviceService createService(@NotNull Context context) {
-    return new TasmotaDeviceService(context, this);
+    TasmotaProjectService projectService = TasmotaProjectService.INSTANCE;
+    if (projectService == null) {
+      // device is opened before project service has started, its counters are not part of project metrics
+      return new TasmotaDeviceService(context, this, new TasmotaMetrics(), false);
+    }
+    return projectService.createDeviceService(this);
   }
 
   @Override
@@ -216,6 +251,7 @@ public final class TasmotaDeviceEntity extends DeviceBaseEntity implements
     iconColor = Color.RED)
   public ActionResponseModel restart() {
     TasmotaProjectService.INSTANCE.publish(this, "restart", "1");
+    TasmotaProjectService.INSTANCE.getUiUpdater().interactive(this);
     return ActionResponseModel.fired();
   }
 
@@ -225,7 +261,9 @@ public final class TasmotaDeviceEntity extends DeviceBaseEntity implements
     icon = "fas fa-arrows-rotate",
     iconColor = Color.GREEN)
   public ActionResponseModel refresh() {
-    TasmotaProjectService.INSTANCE.initialQuery(this);
+    TasmotaProjectService.INSTANCE.initialQuery(this, true);
+    optService().ifPresent(TasmotaDeviceService::refreshCatalogs);
+    TasmotaProjectService.INSTANCE.getUiUpdater().interactive(this);
     return ActionResponseModel.fired();
   }
 
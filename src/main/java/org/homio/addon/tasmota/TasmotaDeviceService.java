@@ -1,12 +1,15 @@
 package org.homio.addon.tasmota;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
 import com.google.common.collect.Lists;
 import lombok.Getter;
 import lombok.SneakyThrows;
 import org.apache.commons.lang3.StringUtils;
+import org.homio.addon.tasmota.TasmotaHistoryStore.RecordVisitor;
 import org.homio.addon.tasmota.TasmotaProjectService.MatchDeviceData;
+import org.homio.addon.tasmota.TasmotaTelemetryBuffer.Series;
+import org.homio.addon.tasmota.TasmotaTelemetryBuffer.Tier;
 import org.homio.api.Context;
 import org.homio.api.model.Icon;
 import org.homio.api.model.OptionModel;
@@ -23,11 +26,21 @@ import org.homio.api.state.StringType;
 import org.homio.api.util.Lang;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -42,34 +55,105 @@ public class TasmotaDeviceService extends ServiceInstance<TasmotaDeviceEntity> {
 
   public static final ConfigDeviceDefinitionService CONFIG_DEVICE_SERVICE =
     new ConfigDeviceDefinitionService("tasmota-devices.json");
-
+  private static final TasmotaDefinitionIndex DEFINITION_INDEX =
+    new TasmotaDefinitionIndex(CONFIG_DEVICE_SERVICE.getDeviceDefinitions());
+  private static final Icon ANALOG_ICON = new Icon("fab fa-uniregistry", "#93C478");
+  private static final Icon TEMPERATURE_ICON = new Icon("fas fa-temperature-three-quarters", "#429DC4");
+  private static final Icon POWER_ICON = new Icon("fas fa-star-half-stroke", "#C4BC45");
+  // distinct payload shapes kept per device, device with more shapes is not worth caching
+  private static final int MAX_SHAPES = 32;
+  // retained messages are replayed by broker right after subscribe together with retained LWT
+  private static final long LWT_REPLAY_WINDOW = TimeUnit.SECONDS.toMillis(10);
+  private static final long SHAPE_PRIME = 1099511628211L;
+  // payload key -> configured endpoints which path starts with that key
+  private static final Map<String, List<EndpointDescriptor>> ENDPOINT_DESCRIPTORS = buildEndpointDescriptors();
+  // configured endpoints without path don't depend on payload, they are created with device
+  private static final List<ConfigDeviceEndpoint> PATHLESS_ENDPOINTS =
+    CONFIG_DEVICE_SERVICE.getDeviceEndpoints().values().stream()
+      .filter(endpoint -> endpoint.getMetadata().optString("path", null) == null)
+      .toList();
 
   private final @Getter Map<String, TasmotaEndpoint> endpoints = new ConcurrentHashMap<>();
-  private final @Getter ObjectNode attributes = OBJECT_MAPPER.createObjectNode();
-  private List<ConfigDeviceDefinition> models;
+  // payload key -> endpoints that read it
+  private final Map<String, List<TasmotaEndpoint>> endpointsByKey = new ConcurrentHashMap<>();
+  private final List<TasmotaEndpoint> keylessEndpoints = new CopyOnWriteArrayList<>();
+  // payload shape hash -> plan learned from first payload of that shape. Reset when endpoint set changes
+  private final Map<Long, ShapePlan> shapePlans = new ConcurrentHashMap<>();
+  private final TasmotaAttributes attributes = new TasmotaAttributes();
+  private final TasmotaDefinitionIndex.Matcher definitionMatcher = DEFINITION_INDEX.matcher();
+  // reset only when new endpoint completes some definition
+  private volatile List<ConfigDeviceDefinition> models;
+  private final AtomicBoolean materializeSavePending = new AtomicBoolean();
   private @Getter JsonNode telemetry = OBJECT_MAPPER.createObjectNode();
-
-  public TasmotaDeviceService(@NotNull Context context, @NotNull TasmotaDeviceEntity entity) {
+  private volatile @Getter TasmotaDeviceSummary summary;
+  // firmware which catalogs have been resolved for
+  private volatile String catalogFirmware;
+  private volatile boolean destroyed;
+  // receive time of last Offline LWT, 0 if device is not offline by LWT. Accessed from device mailbox
+  private volatile long offlineLwtTime;
+  private final TasmotaMetrics metrics;
+  // ui updates are suppressed until project service has restored all devices
+  private volatile boolean restoring;
+  private final LongAdder messages = new LongAdder();
+
+  /**
+   * @param metrics   - metrics of project service which device belongs to
+   * @param restoring - service of known device is created during startup, ui is refreshed once all are restored
+   */
+  public TasmotaDeviceService(@NotNull Context context,
+                              @NotNull TasmotaDeviceEntity entity,
+                              @NotNull TasmotaMetrics metrics,
+                              boolean restoring) {
     super(context, entity, false, "TasmotaDevice");
-    attributes.set("modules", OBJECT_MAPPER.createObjectNode());
-    attributes.set("gpios", OBJECT_MAPPER.createObjectNode());
-    attributes.set("gpio", OBJECT_MAPPER.createObjectNode());
+    this.metrics = metrics;
+    this.restoring = restoring;
+    attributes.update(root -> {
+      root.set(TasmotaCatalogStore.MODULES, OBJECT_MAPPER.createObjectNode());
+      root.set(TasmotaCatalogStore.GPIOS, OBJECT_MAPPER.createObjectNode());
+      root.set("gpio", OBJECT_MAPPER.createObjectNode());
+    });
+    refreshSummary();
 
-    context.ui().updateItem(entity);
-    context.ui().toastr().success(Lang.getServerMessage("ENTITY_CREATED", "${%s}".formatted(entity.getTitle())));
+    if (!restoring) {
+      context.ui().toastr().success(Lang.getServerMessage("ENTITY_CREATED", "${%s}".formatted(entity.getTitle())));
+    }
   }
 
   public void put(String key, String value) {
     if (key.equals("LWT")) {
-      setDeviceStatus("Online".equals(value) ? Status.ONLINE : Status.OFFLINE);
+      boolean online = "Online".equals(value);
+      offlineLwtTime = online ? 0 : System.currentTimeMillis();
+      setDeviceStatus(online ? Status.ONLINE : Status.OFFLINE);
+    }
+    attributes.update(root -> root.put(key, value));
+  }
+
+  /**
+   * @return copy of device attributes, published attributes are shared and must not be modified
+   */
+  public JsonNode getAttributes() {
+    return attributes.get().deepCopy();
+  }
+
+  /**
+   * @return value of attribute at path, i.e. ('StatusLOG', 'TelePeriod'), or missing node if there is no such value
+   */
+  public @NotNull JsonNode getAttribute(@NotNull String... path) {
+    JsonNode node = attributes.get();
+    for (String item : path) {
+      node = node.path(item);
     }
-    attributes.put(key, value);
+    // value nodes are immutable, containers are not handed out
+    return node.isValueNode() ? node : MissingNode.getInstance();
   }
 
   @SneakyThrows
   public void mqttUpdate(JsonNode payload, MatchDeviceData data) {
     if ("tele".equals(data.prefix()) || "stat".equals(data.prefix())) {
+      messages.increment();
+      long start = System.nanoTime();
       payload = handlePayload(data, payload);
+      metrics.recordHandlePayload(System.nanoTime() - start);
       if (payload != null) {
         updateMqtt(payload);
       }
@@ -79,6 +163,44 @@ public class TasmotaDeviceService extends ServiceInstance<TasmotaDeviceEntity> {
   @Override
   public void destroy(boolean forRestart, Exception ex) throws Exception {
     downLinkQualityToZero();
+    destroyed = !forRestart;
+    if (TasmotaProjectService.INSTANCE != null) {
+      TasmotaProjectService.INSTANCE.evictDeviceService(entity.getIeeeAddress(), this);
+      if (!forRestart) {
+        TasmotaProjectService.INSTANCE.unregisterDevice(entity);
+      }
+    }
+  }
+
+  public long getSuppressedWrites() {
+    return endpoints.values().stream().mapToLong(TasmotaEndpoint::getSuppressedWriteCount).sum();
+  }
+
+  public long getEndpointWrites() {
+    return endpoints.values().stream().mapToLong(TasmotaEndpoint::getWriteCount).sum();
+  }
+
+  public long getMessageCount() {
+    return messages.sum();
+  }
+
+  /**
+   * Query in-memory history of numeric endpoint for sparklines/charts
+   */
+  public @NotNull Series getHistory(@NotNull String endpointID, @NotNull Tier tier, long from, long to) {
+    TasmotaEndpoint endpoint = endpoints.get(endpointID);
+    if (endpoint == null || endpoint.getTelemetryBuffer() == null) {
+      return new Series(new long[0], new double[0], new double[0], new double[0]);
+    }
+    return endpoint.getTelemetryBuffer().query(tier, from, to);
+  }
+
+  /**
+   * Visit persisted history of endpoint. Returns 0 if history persistence is disabled
+   */
+  public int queryStoredHistory(@NotNull String endpointID, long from, long to, @NotNull RecordVisitor visitor) {
+    TasmotaHistoryStore store = TasmotaProjectService.INSTANCE == null ? null : TasmotaProjectService.INSTANCE.getHistoryStore();
+    return store == null ? 0 : store.query(entity.getIeeeAddress(), endpointID, from, to, visitor);
   }
 
   public String getGroupDescription() {
@@ -90,7 +212,7 @@ public class TasmotaDeviceService extends ServiceInstance<TasmotaDeviceEntity> {
 
   public @NotNull List<ConfigDeviceDefinition> findDevices() {
     if (models == null) {
-      models = CONFIG_DEVICE_SERVICE.findDeviceDefinitionModels(null, endpoints.keySet());
+      models = definitionMatcher.getCandidates();
     }
     return models;
   }
@@ -106,29 +228,201 @@ public class TasmotaDeviceService extends ServiceInstance<TasmotaDeviceEntity> {
 
   }
 
+  /**
+   * Project service has restored device, ui updates are pushed from now on
+   */
+  void endRestore() {
+    restoring = false;
+  }
+
+  /**
+   * Device has not sent any message for grace multiple of its TelePeriod
+   */
+  public void markSilent() {
+    if (entity.getStatus() == ONLINE) {
+      setDeviceStatus(OFFLINE);
+    }
+  }
+
+  /**
+   * Device has sent message after it has been silent. Only device which is offline by silence is promoted right away.
+   * Device which broker has reported offline by LWT is promoted by message received well after that LWT, earlier ones
+   * may be retained messages which broker replays together with LWT. Mqtt listener doesn't expose retained flag
+   *
+   * @return false if message doesn't prove device is alive
+   */
+  public boolean markAlive() {
+    Status status = entity.getStatus();
+    if (status == ONLINE) {
+      return true;
+    }
+    long offlineSince = offlineLwtTime;
+    boolean offlineBySilence = status == OFFLINE && offlineSince == 0;
+    if (!offlineBySilence && (offlineSince == 0 || System.currentTimeMillis() - offlineSince < LWT_REPLAY_WINDOW)) {
+      return false;
+    }
+    offlineLwtTime = 0;
+    setDeviceStatus(ONLINE);
+    return true;
+  }
+
   private void setDeviceStatus(Status status) {
     entity.setStatus(status);
     endpoints.get(ENDPOINT_DEVICE_STATUS).setValue(new StringType(status.name()), true);
+    refreshSummary();
+  }
+
+  private void refreshSummary() {
+    Status status = Objects.requireNonNullElse(entity.getStatus(), UNKNOWN);
+    TasmotaDeviceSummary newSummary = TasmotaDeviceSummary.of(entity.getIeeeAddress(), attributes.get(), status, endpoints.size());
+    if (!newSummary.equals(summary)) {
+      summary = newSummary;
+      if (TasmotaProjectService.INSTANCE != null) {
+        TasmotaProjectService.INSTANCE.invalidateDeviceList();
+      }
+      requestUiUpdate();
+    }
+  }
+
+  /**
+   * Query modules/gpios catalogs again, i.e. on user refresh
+   */
+  public void refreshCatalogs() {
+    catalogFirmware = null;
+    TasmotaProjectService projectService = TasmotaProjectService.INSTANCE;
+    if (projectService != null) {
+      projectService.queryCatalogs(entity);
+    }
+  }
+
+  /**
+   * Take modules/gpios catalogs of device firmware from catalog store, or query them if no device of that firmware has
+   * reported them yet
+   */
+  private void resolveCatalogs() {
+    TasmotaProjectService projectService = TasmotaProjectService.INSTANCE;
+    String firmware = getFirmwareBuild();
+    if (projectService == null || firmware.isEmpty() || firmware.equals(catalogFirmware)) {
+      return;
+    }
+    catalogFirmware = firmware;
+    if (projectService.getCatalogStore().resolve(firmware, this::useCatalog, this::retryCatalogs)) {
+      projectService.publish(entity, TasmotaProjectService.CATALOG_COMMANDS);
+    }
+  }
+
+  /**
+   * Device of same firmware hasn't reported catalogs this device waits for
+   */
+  private void retryCatalogs() {
+    if (!destroyed) {
+      catalogFirmware = null;
+      resolveCatalogs();
+    }
+  }
+
+  private void shareCatalog(String catalog) {
+    TasmotaProjectService projectService = TasmotaProjectService.INSTANCE;
+    String firmware = getFirmwareBuild();
+    if (projectService != null && !firmware.isEmpty()) {
+      useCatalog(catalog, projectService.getCatalogStore().share(firmware, catalog, attributes.get().get(catalog)));
+    }
+  }
+
+  private void useCatalog(String catalog, JsonNode node) {
+    attributes.update(root -> root.set(catalog, node));
+  }
+
+  /**
+   * Full firmware version including build variant, i.e. '13.1.0(tasmota)', as variants have different catalogs
+   */
+  private String getFirmwareBuild() {
+    return attributes.get().path("StatusFWR").path("Version").asText();
+  }
+
+  /**
+   * Coalesced ui push of device. Pushed directly if project service is not started
+   */
+  private void requestUiUpdate() {
+    TasmotaProjectService projectService = TasmotaProjectService.INSTANCE;
+    if (projectService == null) {
+      context.ui().updateItem(entity);
+    } else if (!restoring) {
+      projectService.getUiUpdater().request(entity);
+    }
   }
 
+  /**
+   * Creates only endpoints which every device has, configured endpoints without path and configured endpoints which
+   * device has reported before. Rest of configured endpoints are created when payload contains their path
+   */
   private void createRequireEndpoints() {
-    addEndpointOptional(ENDPOINT_LAST_SEEN, key -> new TasmotaEndpoint(ENDPOINT_LAST_SEEN, EndpointType.number, entity));
+    addEndpointOptional(ENDPOINT_LAST_SEEN, key -> new TasmotaEndpoint(ENDPOINT_LAST_SEEN, EndpointType.number, entity, metrics));
 
     addEndpointOptional(ENDPOINT_DEVICE_STATUS, key ->
-      new TasmotaEndpoint(ENDPOINT_DEVICE_STATUS, EndpointType.select, entity, builder ->
+      new TasmotaEndpoint(ENDPOINT_DEVICE_STATUS, EndpointType.select, entity, metrics, builder ->
         builder.setRange(OptionModel.list(Status.set(ONLINE, OFFLINE, UNKNOWN)))));
 
-    for (ConfigDeviceEndpoint endpoint : CONFIG_DEVICE_SERVICE.getDeviceEndpoints().values()) {
+    for (ConfigDeviceEndpoint endpoint : PATHLESS_ENDPOINTS) {
       addEndpointOptional(endpoint.getName(), key -> buildEndpoint(endpoint, key));
     }
+
+    for (String name : entity.getMaterializedEndpoints()) {
+      ConfigDeviceEndpoint endpoint = CONFIG_DEVICE_SERVICE.getDeviceEndpoints().get(name);
+      if (endpoint != null) {
+        addEndpointOptional(name, key -> buildEndpoint(endpoint, key));
+      }
+    }
+  }
+
+  private static Map<String, List<EndpointDescriptor>> buildEndpointDescriptors() {
+    Map<String, List<EndpointDescriptor>> descriptors = new HashMap<>();
+    for (ConfigDeviceEndpoint endpoint : CONFIG_DEVICE_SERVICE.getDeviceEndpoints().values()) {
+      String path = endpoint.getMetadata().optString("path", null);
+      if (path != null) {
+        String[] pathItems = path.split("/");
+        descriptors.computeIfAbsent(pathItems[0], key -> new ArrayList<>()).add(new EndpointDescriptor(endpoint, pathItems));
+      }
+    }
+    return descriptors;
+  }
+
+  /**
+   * Create configured endpoints which path is present in payload and remember them for restore after restart
+   */
+  private void materializeEndpoints(String key, JsonNode payload) {
+    List<EndpointDescriptor> descriptors = ENDPOINT_DESCRIPTORS.get(key);
+    if (descriptors == null) {
+      return;
+    }
+    boolean created = false;
+    for (EndpointDescriptor descriptor : descriptors) {
+      String name = descriptor.endpoint.getName();
+      if (!endpoints.containsKey(name) && descriptor.isPresent(payload)) {
+        addEndpointOptional(name, k -> buildEndpoint(descriptor.endpoint, k));
+        created = true;
+      }
+    }
+    // saved in background so device mailbox doesn't wait for db, endpoints created meanwhile join pending save
+    if (created && materializeSavePending.compareAndSet(false, true)) {
+      context.bgp().builder("tasmota-endpoints-" + entity.getIeeeAddress()).execute(() -> {
+        materializeSavePending.set(false);
+        List<String> materialized = endpoints.keySet().stream()
+          .filter(CONFIG_DEVICE_SERVICE.getDeviceEndpoints()::containsKey)
+          .sorted()
+          .toList();
+        context.db().save(entity.setMaterializedEndpoints(materialized));
+      });
+    }
   }
 
   private TasmotaEndpoint buildEndpoint(ConfigDeviceEndpoint endpoint, String key) {
     EndpointType endpointType = EndpointType.valueOf(endpoint.getMetadata().optString("type", "string"));
-    return new TasmotaEndpoint(key, endpointType, entity, endpoint1 -> {
+    return new TasmotaEndpoint(key, endpointType, entity, metrics, endpoint1 -> {
       String path = endpoint.getMetadata().optString("path", null);
       if (path != null) {
         String[] pathItems = path.split("/");
+        endpoint1.addPayloadKey(pathItems[0]);
         endpoint1.setDataReader(payload -> {
           for (String pathItem : pathItems) {
             payload = payload.path(pathItem);
@@ -144,10 +438,11 @@ public class TasmotaDeviceService extends ServiceInstance<TasmotaDeviceEntity> {
 
   private void addPowerEntrypoints(String key) {
     addEndpointOptional(key, s ->
-      new TasmotaEndpoint(key, EndpointType.bool, entity, builder -> {
-        builder.setIcon(new Icon("fas fa-star-half-stroke", "#C4BC45"));
+      new TasmotaEndpoint(key, EndpointType.bool, entity, metrics, builder -> {
+        builder.setIcon(POWER_ICON);
         builder.setUpdateHandler(state ->
           TasmotaProjectService.INSTANCE.publish(entity, key, "toggle"));
+        builder.addPayloadKey(key);
         builder.setDataReader(jsonNode -> {
           if (jsonNode.has(key)) {
             return OnOffType.of(jsonNode.get(key).asText());
@@ -161,11 +456,12 @@ public class TasmotaDeviceService extends ServiceInstance<TasmotaDeviceEntity> {
     entry.getValue().fields().forEachRemaining(analogPins -> {
       String key = analogPins.getKey();
       addEndpointOptional(key, s ->
-        new TasmotaEndpoint(key, EndpointType.number, entity, builder -> {
+        new TasmotaEndpoint(key, EndpointType.number, entity, metrics, builder -> {
           if (endpointBuilder != null) {
             endpointBuilder.accept(builder);
           }
           builder.setIcon(icon);
+          builder.addPayloadKey(path);
           builder.setDataReader(jsonNode -> {
             if (jsonNode.path(path).has(key)) {
               return new DecimalType(jsonNode.get(path).get(key).asDouble());
@@ -177,27 +473,84 @@ public class TasmotaDeviceService extends ServiceInstance<TasmotaDeviceEntity> {
   }
 
   private void updateMqtt(JsonNode payload) {
+    long start = System.nanoTime();
+    applyPayload(payload);
+    metrics.recordUpdateMqtt(System.nanoTime() - start);
+  }
+
+  /**
+   * Payloads of already seen shape go straight to endpoints from learned plan, new shape runs endpoint discovery once
+   */
+  private void applyPayload(JsonNode payload) {
+    long shape = shapeOf(payload, 17);
+    ShapePlan plan = shapePlans.get(shape);
+    if (plan == null) {
+      plan = learnShape(payload);
+      if (shapePlans.size() >= MAX_SHAPES) {
+        shapePlans.clear();
+      }
+      shapePlans.put(shape, plan);
+    }
+
+    attributes.update(root -> payload.fields().forEachRemaining(entry -> root.set(entry.getKey(), entry.getValue())));
+    if (plan.refreshSummary) {
+      refreshSummary();
+      resolveCatalogs();
+    }
+    if (plan.telePeriod && TasmotaProjectService.INSTANCE != null) {
+      JsonNode telePeriod = payload.has("TelePeriod") ? payload.get("TelePeriod") : payload.path("StatusLOG").path("TelePeriod");
+      if (telePeriod.isNumber()) {
+        TasmotaProjectService.INSTANCE.getLivenessMonitor().setTelePeriod(entity.getIeeeAddress(), telePeriod.asInt());
+      }
+    }
+    for (TasmotaEndpoint endpoint : plan.endpoints) {
+      endpoint.mqttUpdate(payload);
+    }
+  }
+
+  private ShapePlan learnShape(JsonNode payload) {
+    Set<TasmotaEndpoint> affectedEndpoints = new LinkedHashSet<>();
     payload.fields().forEachRemaining(entry -> {
       String key = entry.getKey();
       if (key.equals("ANALOG")) {
-        addMqttEntrypoints(entry, "ANALOG", new Icon("fab fa-uniregistry", "#93C478"), builder -> {
+        addMqttEntrypoints(entry, "ANALOG", ANALOG_ICON, builder -> {
           builder.setMin(1F);
           builder.setMax(1024F);
+          builder.setDeadband(2);
         });
       }
       if (key.equals("TEMPERATURE")) {
-        addMqttEntrypoints(entry, "TEMPERATURE", new Icon("fas fa-temperature-three-quarters", "#429DC4"), builder -> {
-        });
+        addMqttEntrypoints(entry, "TEMPERATURE", TEMPERATURE_ICON, builder ->
+          builder.setDeadband(0.1));
       }
       if (key.startsWith("POWER")) {
         addPowerEntrypoints(key);
       }
-      attributes.set(key, entry.getValue());
+      materializeEndpoints(key, payload);
+      List<TasmotaEndpoint> keyEndpoints = endpointsByKey.get(key);
+      if (keyEndpoints != null) {
+        affectedEndpoints.addAll(keyEndpoints);
+      }
     });
+    affectedEndpoints.addAll(keylessEndpoints);
+    boolean refreshSummary = TasmotaDeviceSummary.ATTRIBUTES.stream().anyMatch(payload::has);
+    boolean telePeriod = payload.has("TelePeriod") || payload.has("StatusLOG");
+    return new ShapePlan(List.copyOf(affectedEndpoints), refreshSummary, telePeriod);
+  }
 
-    for (TasmotaEndpoint endpoint : endpoints.values()) {
-      endpoint.mqttUpdate(payload);
+  /**
+   * Hash of field names and nesting of payload objects, values and arrays are leaves
+   */
+  private static long shapeOf(JsonNode node, long hash) {
+    Iterator<Entry<String, JsonNode>> fields = node.fields();
+    while (fields.hasNext()) {
+      Entry<String, JsonNode> field = fields.next();
+      hash = hash * SHAPE_PRIME + field.getKey().hashCode();
+      if (field.getValue().isObject()) {
+        hash = shapeOf(field.getValue(), hash * SHAPE_PRIME + '{') * SHAPE_PRIME + '}';
+      }
     }
+    return hash;
   }
 
     /*private void addMqttListeners() {
@@ -256,18 +609,22 @@ public class TasmotaDeviceService extends ServiceInstance<TasmotaDeviceEntity> {
     List<String> keys = Lists.newArrayList(payload.fieldNames());
     String fk = keys.get(0);
     if ((data.reply().equals("RESULT") && fk.startsWith("Modules")) || data.reply().equals("MODULES")) {
-      updatePartly("modules", payload);
+      updatePartly(TasmotaCatalogStore.MODULES, payload);
+      shareCatalog(TasmotaCatalogStore.MODULES);
       return null;
     } else if ((data.reply().equals("RESULT") && fk.equals("NAME")) || data.reply().equals("TEMPLATE")) {
-      attributes.set("templates", payload);
+      JsonNode templates = TasmotaProjectService.INSTANCE == null ? payload :
+        TasmotaProjectService.INSTANCE.getCatalogStore().intern(payload);
+      attributes.update(root -> root.set("templates", templates));
       return null;
     } else if (data.reply().equals("RESULT") && fk.startsWith("GPIOs") || data.reply().equals("GPIOS")) {
-      updatePartly("gpios", payload);
+      updatePartly(TasmotaCatalogStore.GPIOS, payload);
+      shareCatalog(TasmotaCatalogStore.GPIOS);
       return null;
     } else if (data.reply().equals("RESULT") && fk.startsWith("GPIO") || data.reply().equals("GPIO")) {
-      payload.fields().forEachRemaining(item -> {
+      JsonNode gpios = payload;
+      attributes.updateChild("gpio", gpio -> gpios.fields().forEachRemaining(item -> {
         if (!item.getKey().equals("GPIO")) {
-          ObjectNode gpio = (ObjectNode) attributes.get("gpio");
           if (item.getValue().isTextual()) {
             String gp_id = item.getValue().asText().split(" \\(")[0];
             gpio.put(item.getKey(), gp_id);
@@ -275,15 +632,14 @@ public class TasmotaDeviceService extends ServiceInstance<TasmotaDeviceEntity> {
             gpio.put(item.getKey(), item.getValue().fieldNames().next());
           }
         }
-      });
+      }));
       return null;
     }
     return payload;
   }
 
   private void updatePartly(String key, JsonNode payload) {
-    ObjectNode node = (ObjectNode) attributes.get(key);
-    payload.fields().forEachRemaining(entry -> {
+    attributes.updateChild(key, node -> payload.fields().forEachRemaining(entry -> {
       if (entry.getValue().isObject()) {
         entry.getValue().fields().forEachRemaining(child -> {
           node.set(child.getKey(), child.getValue());
@@ -291,14 +647,32 @@ public class TasmotaDeviceService extends ServiceInstance<TasmotaDeviceEntity> {
       } else {
         node.set(entry.getKey(), entry.getValue());
       }
-    });
+    }));
   }
 
   private void addEndpointOptional(String key, Function<String, TasmotaEndpoint> endpointProducer) {
     if (!endpoints.containsKey(key)) {
       TasmotaEndpoint endpoint = endpointProducer.apply(key);
-      endpoint.mqttUpdate(attributes);
+      endpoint.mqttUpdate(attributes.get());
       endpoints.put(key, endpoint);
+      indexEndpoint(endpoint);
+      shapePlans.clear();
+      if (definitionMatcher.add(key)) {
+        models = null;
+      }
+      refreshSummary();
+    }
+  }
+
+  private void indexEndpoint(TasmotaEndpoint endpoint) {
+    if (endpoint.getDataReader() == null) {
+      return;
+    }
+    if (endpoint.getPayloadKeys().isEmpty()) {
+      keylessEndpoints.add(endpoint);
+    }
+    for (String payloadKey : endpoint.getPayloadKeys()) {
+      endpointsByKey.computeIfAbsent(payloadKey, k -> new CopyOnWriteArrayList<>()).add(endpoint);
     }
   }
 
@@ -314,4 +688,23 @@ public class TasmotaDeviceService extends ServiceInstance<TasmotaDeviceEntity> {
       }
     });
   }
+
+  /**
+   * @param endpoints      - endpoints which read payload of that shape, in discovery order
+   * @param refreshSummary - shape contains summary attributes
+   * @param telePeriod     - shape contains TelePeriod of device
+   */
+  private record ShapePlan(List<TasmotaEndpoint> endpoints, boolean refreshSummary, boolean telePeriod) {
+  }
+
+  private record EndpointDescriptor(ConfigDeviceEndpoint endpoint, String[] path) {
+
+    private boolean isPresent(JsonNode payload) {
+      JsonNode node = payload;
+      for (String pathItem : path) {
+        node = node.path(pathItem);
+      }
+      return !node.isMissingNode();
+    }
+  }
 }
@@ -0,0 +1,43 @@
+package org.homio.addon.tasmota;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.homio.api.model.Status;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Set;
+
+/**
+ * Precomputed device values shown in device lists and entity cards
+ */
+public record TasmotaDeviceSummary(
+  @NotNull String ieeeAddress,
+  @NotNull String name,
+  @NotNull String ipAddress,
+  @NotNull String firmwareVersion,
+  @NotNull Status status,
+  int endpointsCount) {
+
+  /**
+   * Top-level attributes which summary depends on
+   */
+  public static final Set<String> ATTRIBUTES = Set.of("Status", "StatusNET", "StatusFWR");
+
+  public static TasmotaDeviceSummary of(@NotNull String ieeeAddress, @NotNull JsonNode attributes,
+                                        @NotNull Status status, int endpointsCount) {
+    String version = attributes.path("StatusFWR").path("Version").asText();
+    if (version.contains("(")) {
+      version = version.substring(0, version.indexOf("("));
+    }
+    return new TasmotaDeviceSummary(
+      ieeeAddress,
+      attributes.path("Status").path("FriendlyName").path(0).asText(),
+      attributes.path("StatusNET").path("IPAddress").asText(),
+      version,
+      status,
+      endpointsCount);
+  }
+
+  public String getColor() {
+    return status.getColor();
+  }
+}
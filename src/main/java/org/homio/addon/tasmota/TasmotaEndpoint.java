@@ -1,16 +1,23 @@
 package org.homio.addon.tasmota;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.log4j.Log4j2;
 import org.homio.api.model.Icon;
 import org.homio.api.model.device.ConfigDeviceEndpoint;
 import org.homio.api.model.endpoint.BaseDeviceEndpoint;
+import org.homio.api.state.DecimalType;
 import org.homio.api.state.State;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -18,21 +25,54 @@ import java.util.function.Function;
 @Getter
 public class TasmotaEndpoint extends BaseDeviceEndpoint<TasmotaDeviceEntity> {
 
+  private static final long DEFAULT_MAX_SILENCE = TimeUnit.MINUTES.toMillis(5);
+
   @Setter
   private @Nullable Function<JsonNode, State> dataReader;
+  /**
+   * Top-level payload keys that dataReader consumes. Endpoint with dataReader and without keys receives every payload
+   */
+  private final Set<String> payloadKeys = new HashSet<>();
+  /**
+   * Numeric values which differ from current value less than deadband(absolute) or deadbandPercent(of current value)
+   * are not written. Not numeric values are written only if changed
+   */
+  @Setter
+  private double deadband;
+  @Setter
+  private double deadbandPercent;
+  /**
+   * Write value even if not changed when last write was more than maxSilence ms ago
+   */
+  @Setter
+  private long maxSilence = DEFAULT_MAX_SILENCE;
+  private final LongAdder suppressedWrites = new LongAdder();
+  private final LongAdder writes = new LongAdder();
+  private final TasmotaMetrics metrics;
+  private volatile long lastWriteTime;
+  /**
+   * In-memory history of numeric endpoint. null if history is disabled
+   */
+  private final @Nullable TasmotaTelemetryBuffer telemetryBuffer;
+  @Getter(AccessLevel.NONE)
+  private final String endpointEntityID;
 
   public TasmotaEndpoint(@NotNull String endpointEntityID,
                          @NotNull EndpointType endpointType,
-                         @NotNull TasmotaDeviceEntity device) {
-    this(endpointEntityID, endpointType, device, builder -> {
+                         @NotNull TasmotaDeviceEntity device,
+                         @NotNull TasmotaMetrics metrics) {
+    this(endpointEntityID, endpointType, device, metrics, builder -> {
     });
   }
 
   public TasmotaEndpoint(@NotNull String endpointEntityID,
                          @NotNull EndpointType endpointType,
                          @NotNull TasmotaDeviceEntity device,
+                         @NotNull TasmotaMetrics metrics,
                          @NotNull Consumer<TasmotaEndpoint> builder) {
     super("TASMOTA", device.context());
+    this.endpointEntityID = endpointEntityID;
+    this.metrics = metrics;
     ConfigDeviceEndpoint configEndpoint = TasmotaDeviceService.CONFIG_DEVICE_SERVICE.getDeviceEndpoints().get(endpointEntityID);
 
     setIcon(new Icon(
@@ -46,20 +86,80 @@ public class TasmotaEndpoint extends BaseDeviceEndpoint<TasmotaDeviceEntity> {
       endpointEntityID,
       endpointType);
 
+    if (configEndpoint != null) {
+      deadband = configEndpoint.getMetadata().optDouble("deadband", 0);
+      deadbandPercent = configEndpoint.getMetadata().optDouble("deadbandPercent", 0);
+      maxSilence = TimeUnit.SECONDS.toMillis(configEndpoint.getMetadata().optLong("maxSilence",
+        TimeUnit.MILLISECONDS.toSeconds(DEFAULT_MAX_SILENCE)));
+    }
+
+    telemetryBuffer = endpointType == EndpointType.number && TasmotaProjectService.INSTANCE != null
+      ? TasmotaProjectService.INSTANCE.createTelemetryBuffer() : null;
+
     builder.accept(this);
 
     getOrCreateVariable();
   }
 
+  public TasmotaEndpoint addPayloadKey(@NotNull String key) {
+    payloadKeys.add(key);
+    return this;
+  }
+
   public void mqttUpdate(JsonNode payload) {
     if (dataReader != null) {
       State state = dataReader.apply(payload);
       if (state != null) {
-        this.setValue(state, true);
+        long now = System.currentTimeMillis();
+        // history keeps every sample, deadband only limits variable and ui writes
+        if (state instanceof DecimalType) {
+          if (telemetryBuffer != null) {
+            telemetryBuffer.add(now, state.doubleValue());
+          }
+          storeHistory(now, state.doubleValue());
+        }
+        if (isChanged(state)) {
+          lastWriteTime = now;
+          this.setValue(state, true);
+          writes.increment();
+          metrics.recordEndpointWrite();
+        } else {
+          suppressedWrites.increment();
+        }
+      }
+    }
+  }
+
+  public long getSuppressedWriteCount() {
+    return suppressedWrites.sum();
+  }
+
+  public long getWriteCount() {
+    return writes.sum();
+  }
+
+  private void storeHistory(long timestamp, double value) {
+    if (TasmotaProjectService.INSTANCE != null) {
+      TasmotaHistoryStore store = TasmotaProjectService.INSTANCE.getHistoryStore();
+      if (store != null) {
+        store.append(getDeviceID(), endpointEntityID, timestamp, value);
       }
     }
   }
 
+  private boolean isChanged(State state) {
+    State current = getValue();
+    if (current == null || System.currentTimeMillis() - lastWriteTime >= maxSilence) {
+      return true;
+    }
+    if (state instanceof DecimalType && current instanceof DecimalType) {
+      double diff = Math.abs(state.doubleValue() - current.doubleValue());
+      double threshold = Math.max(deadband, Math.abs(current.doubleValue()) * deadbandPercent / 100);
+      return diff > threshold;
+    }
+    return !Objects.equals(state.stringValue(), current.stringValue());
+  }
+
   @Override
   public void writeValue(@NotNull State state) {
         /*switch (expose.getType()) {
@@ -0,0 +1,502 @@
+package org.homio.addon.tasmota;
+
+import lombok.extern.log4j.Log4j2;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Append-only time-series store on segment files.
+ * <p>
+ * Samples are fixed-width records [device idx: int, endpoint idx: int, timestamp: long, value: double] appended to
+ * 'raw-{start}.seg' segments of fixed capacity. Device and endpoint names are kept in append-only dictionaries. Raw
+ * segments older than raw retention are compacted into 'agg-{start}.seg' segments with 15 min averages and removed,
+ * aggregated segments are removed after aggregate retention. Unused tail of segment is zero filled, so after restart
+ * writing continues after last record with non-zero timestamp.
+ * <p>
+ * Only active raw segment is memory-mapped. Writers reserve record slot with atomic counter and publish record by
+ * release store of its timestamp, so endpoints of different devices don't contend on lock. Older segments are mapped
+ * read-only for the time of query. Records are appended in timestamp order within clock skew, so query binary searches
+ * start of range in segment and stops after its end
+ */
+@Log4j2
+public class TasmotaHistoryStore implements Closeable {
+
+  public static final int RECORD_SIZE = 24;
+  public static final long AGGREGATE_BUCKET = TimeUnit.MINUTES.toMillis(15);
+  // records may be appended with slightly older timestamp than segment start
+  private static final long CLOCK_SKEW = TimeUnit.MINUTES.toMillis(1);
+  private static final String RAW_PREFIX = "raw-";
+  private static final String AGG_PREFIX = "agg-";
+  private static final String SEGMENT_EXT = ".seg";
+  // max number of reserved but unwritten slots, i.e. writers interrupted by crash
+  private static final int HOLE_WINDOW = 4096;
+  // record timestamp offset is 8 byte aligned, so mapped buffer supports release/acquire access to it
+  private static final VarHandle TIMESTAMP = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+  private final Path directory;
+  private final int segmentRecords;
+  private final Dictionary devices;
+  private final Dictionary endpoints;
+  // guarded by this
+  private final TreeMap<Long, Segment> rawSegments = new TreeMap<>();
+  private final TreeMap<Long, Segment> aggSegments = new TreeMap<>();
+  private volatile Segment active;
+  private volatile boolean closed;
+
+  public TasmotaHistoryStore(@NotNull Path directory, int segmentRecords) throws IOException {
+    this.directory = directory;
+    this.segmentRecords = segmentRecords;
+    Files.createDirectories(directory);
+    this.devices = new Dictionary(directory.resolve("devices.idx"));
+    this.endpoints = new Dictionary(directory.resolve("endpoints.idx"));
+    loadSegments();
+  }
+
+  public int getSegmentRecords() {
+    return segmentRecords;
+  }
+
+  /**
+   * Append sample. Does nothing once store is closed
+   */
+  public void append(@NotNull String device, @NotNull String endpoint, long timestamp, double value) {
+    if (closed) {
+      return;
+    }
+    try {
+      int deviceId = devices.idOf(device);
+      int endpointId = endpoints.idOf(endpoint);
+      Segment segment = active;
+      while (true) {
+        if (segment == null || segment.reserved.get() >= segment.capacity) {
+          segment = roll(segment, timestamp);
+          if (segment == null) {
+            return;
+          }
+        }
+        int record = segment.reserved.getAndIncrement();
+        MappedByteBuffer buffer = segment.buffer;
+        if (record < segment.capacity && buffer != null) {
+          int pos = record * RECORD_SIZE;
+          buffer.putInt(pos, deviceId);
+          buffer.putInt(pos + 4, endpointId);
+          buffer.putDouble(pos + 16, value);
+          TIMESTAMP.setRelease(buffer, pos + 8, timestamp);
+          return;
+        }
+      }
+    } catch (IOException ex) {
+      log.error("Unable to append tasmota history record", ex);
+    }
+  }
+
+  /**
+   * Visit stored samples of device endpoint in [from, to] range. Compacted range is returned as 15 min averages
+   *
+   * @return number of visited samples
+   */
+  public int query(@NotNull String device, @NotNull String endpoint, long from, long to, @NotNull RecordVisitor visitor) {
+    int deviceId = devices.find(device);
+    int endpointId = endpoints.find(endpoint);
+    if (deviceId < 0 || endpointId < 0) {
+      return 0;
+    }
+    List<Segment> segments = new ArrayList<>();
+    synchronized (this) {
+      TreeSet<Long> starts = new TreeSet<>(rawSegments.keySet());
+      starts.addAll(aggSegments.keySet());
+      for (Long start : starts) {
+        Long next = starts.higher(start);
+        if (start - CLOCK_SKEW <= to && (next == null || next + CLOCK_SKEW > from)) {
+          segments.add(aggSegments.containsKey(start) ? aggSegments.get(start) : rawSegments.get(start));
+        }
+      }
+    }
+    int[] visited = new int[1];
+    for (Segment segment : segments) {
+      try {
+        forEachRecord(segment, from, to, (recordDevice, recordEndpoint, timestamp, value) -> {
+          if (recordDevice == deviceId && recordEndpoint == endpointId && timestamp >= from && timestamp <= to) {
+            visitor.accept(timestamp, value);
+            visited[0]++;
+          }
+        });
+      } catch (NoSuchFileException ignore) {
+        // segment has been compacted or removed meanwhile
+      } catch (IOException ex) {
+        log.warn("Unable to read tasmota history segment: {}", segment.path, ex);
+      }
+    }
+    return visited[0];
+  }
+
+  /**
+   * Compact raw segments older than rawRetention, remove aggregated segments older than aggRetention and flush
+   * active segment to disk
+   */
+  public void maintain(long rawRetention, long aggRetention) {
+    long now = System.currentTimeMillis();
+    List<Segment> toCompact = new ArrayList<>();
+    List<Segment> toRemove = new ArrayList<>();
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      for (Map.Entry<Long, Segment> entry : rawSegments.entrySet()) {
+        Long next = rawSegments.higherKey(entry.getKey());
+        if (entry.getValue() != active && next != null && next < now - rawRetention) {
+          toCompact.add(entry.getValue());
+        }
+      }
+      for (Map.Entry<Long, Segment> entry : aggSegments.entrySet()) {
+        Long next = aggSegments.higherKey(entry.getKey());
+        if (next == null) {
+          next = rawSegments.isEmpty() ? null : rawSegments.firstKey();
+        }
+        if (next != null && next < now - aggRetention) {
+          toRemove.add(entry.getValue());
+        }
+      }
+      Segment current = active;
+      MappedByteBuffer buffer = current == null ? null : current.buffer;
+      if (buffer != null) {
+        buffer.force();
+      }
+    }
+    for (Segment segment : toCompact) {
+      try {
+        Segment aggregated = compact(segment);
+        synchronized (this) {
+          aggSegments.put(segment.start, aggregated);
+          rawSegments.remove(segment.start);
+        }
+        Files.deleteIfExists(segment.path);
+      } catch (IOException ex) {
+        log.error("Unable to compact tasmota history segment: {}", segment.path, ex);
+      }
+    }
+    for (Segment segment : toRemove) {
+      synchronized (this) {
+        aggSegments.remove(segment.start);
+      }
+      try {
+        Files.deleteIfExists(segment.path);
+      } catch (IOException ex) {
+        log.warn("Unable to remove tasmota history segment: {}", segment.path, ex);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    Segment current = active;
+    if (current != null) {
+      unmap(current);
+      active = null;
+    }
+    rawSegments.clear();
+    aggSegments.clear();
+  }
+
+  private void loadSegments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path path : files.toList()) {
+        String name = path.getFileName().toString();
+        if (!name.endsWith(SEGMENT_EXT)) {
+          continue;
+        }
+        if (name.startsWith(AGG_PREFIX)) {
+          long start = parseStart(name, AGG_PREFIX);
+          aggSegments.put(start, new Segment(start, path, (int) (Files.size(path) / RECORD_SIZE)));
+        } else if (name.startsWith(RAW_PREFIX)) {
+          long start = parseStart(name, RAW_PREFIX);
+          rawSegments.put(start, new Segment(start, path, (int) (Files.size(path) / RECORD_SIZE)));
+        }
+      }
+    }
+    // raw segment has been compacted but not removed before restart
+    for (Long start : new ArrayList<>(rawSegments.keySet())) {
+      if (aggSegments.containsKey(start)) {
+        Files.deleteIfExists(rawSegments.remove(start).path);
+      }
+    }
+    if (!rawSegments.isEmpty()) {
+      Segment last = rawSegments.lastEntry().getValue();
+      if (last.capacity == segmentRecords) {
+        try (FileChannel channel = FileChannel.open(last.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+          last.buffer = channel.map(MapMode.READ_WRITE, 0, (long) last.capacity * RECORD_SIZE);
+        }
+        last.reserved.set(findEnd(last.buffer, last.capacity));
+        active = last;
+      }
+    }
+  }
+
+  /**
+   * Replace full (or missing) active segment with new one, unless other writer has done it already
+   *
+   * @return segment to append to, null if store is closed
+   */
+  private synchronized Segment roll(Segment full, long timestamp) throws IOException {
+    if (closed) {
+      return null;
+    }
+    if (active != full) {
+      return active;
+    }
+    long start = timestamp;
+    Path path = directory.resolve(RAW_PREFIX + start + SEGMENT_EXT);
+    while (Files.exists(path) || rawSegments.containsKey(start) || aggSegments.containsKey(start)) {
+      start++;
+      path = directory.resolve(RAW_PREFIX + start + SEGMENT_EXT);
+    }
+    Segment segment = new Segment(start, path, segmentRecords);
+    segment.reserved.set(0);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+      StandardOpenOption.WRITE)) {
+      segment.buffer = channel.map(MapMode.READ_WRITE, 0, (long) segmentRecords * RECORD_SIZE);
+    }
+    rawSegments.put(start, segment);
+    active = segment;
+    if (full != null) {
+      unmap(full);
+    }
+    return segment;
+  }
+
+  /**
+   * Flush segment and drop its mapping, segment is read through file channel from now on. Writer which still holds
+   * reference to the buffer completes its record, mapping is released by GC once no one references it
+   */
+  private static void unmap(Segment segment) {
+    MappedByteBuffer buffer = segment.buffer;
+    if (buffer != null) {
+      buffer.force();
+      segment.buffer = null;
+    }
+  }
+
+  private Segment compact(Segment segment) throws IOException {
+    TreeMap<AggregateKey, double[]> aggregates = new TreeMap<>(Comparator.comparingLong(AggregateKey::bucket)
+      .thenComparingInt(AggregateKey::device)
+      .thenComparingInt(AggregateKey::endpoint));
+    forEachRecord(segment, 0, Long.MAX_VALUE, (device, endpoint, timestamp, value) -> {
+      AggregateKey key = new AggregateKey(device, endpoint, timestamp - timestamp % AGGREGATE_BUCKET);
+      double[] sumAndCount = aggregates.computeIfAbsent(key, k -> new double[2]);
+      sumAndCount[0] += value;
+      sumAndCount[1]++;
+    });
+    ByteBuffer target = ByteBuffer.allocate(aggregates.size() * RECORD_SIZE);
+    for (Map.Entry<AggregateKey, double[]> entry : aggregates.entrySet()) {
+      target.putInt(entry.getKey().device());
+      target.putInt(entry.getKey().endpoint());
+      target.putLong(entry.getKey().bucket());
+      target.putDouble(entry.getValue()[0] / entry.getValue()[1]);
+    }
+    target.flip();
+    Path path = directory.resolve(AGG_PREFIX + segment.start + SEGMENT_EXT);
+    Path tmpPath = directory.resolve(AGG_PREFIX + segment.start + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+      StandardOpenOption.WRITE)) {
+      while (target.hasRemaining()) {
+        channel.write(target);
+      }
+      channel.force(true);
+    }
+    Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    return new Segment(segment.start, path, aggregates.size());
+  }
+
+  /**
+   * Visit published records of segment which may fall into [from, to] range. Active segment is read from its mapping,
+   * sealed segment is mapped read-only for the time of visit
+   */
+  private static void forEachRecord(Segment segment, long from, long to, RawRecordVisitor visitor) throws IOException {
+    ByteBuffer buffer = segment.buffer;
+    int count;
+    if (buffer != null) {
+      count = Math.min(segment.reserved.get(), segment.capacity);
+    } else {
+      try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+        long size = Math.min(channel.size(), (long) segment.capacity * RECORD_SIZE);
+        buffer = channel.map(MapMode.READ_ONLY, 0, size);
+        count = (int) (size / RECORD_SIZE);
+      }
+    }
+    for (int record = lowerBound(buffer, count, from - CLOCK_SKEW); record < count; record++) {
+      int pos = record * RECORD_SIZE;
+      long timestamp = timestamp(buffer, record);
+      // zero timestamp - slot is reserved but record isn't written yet
+      if (timestamp == 0) {
+        continue;
+      }
+      if (timestamp - CLOCK_SKEW > to) {
+        return;
+      }
+      visitor.accept(buffer.getInt(pos), buffer.getInt(pos + 4), timestamp, buffer.getDouble(pos + 16));
+    }
+  }
+
+  /**
+   * @return first record with timestamp not less than target, unwritten slots are skipped
+   */
+  private static int lowerBound(ByteBuffer buffer, int count, long target) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      int probe = mid;
+      long timestamp = 0;
+      while (probe < high && (timestamp = timestamp(buffer, probe)) == 0) {
+        probe++;
+      }
+      if (probe < high && timestamp < target) {
+        low = probe + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Slots are reserved in order and written by few writers at once, so written part is found by binary search and then
+   * checked for records written after slot which writer hasn't completed
+   */
+  private static int findEnd(ByteBuffer buffer, int capacity) {
+    int low = 0;
+    while (true) {
+      int high = capacity;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (timestamp(buffer, mid) != 0) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      int next = low;
+      int limit = Math.min(capacity, low + HOLE_WINDOW);
+      while (next < limit && timestamp(buffer, next) == 0) {
+        next++;
+      }
+      if (next == limit) {
+        return low;
+      }
+      low = next + 1;
+    }
+  }
+
+  private static long timestamp(ByteBuffer buffer, int record) {
+    return (long) TIMESTAMP.getAcquire(buffer, record * RECORD_SIZE + 8);
+  }
+
+  private static long parseStart(String name, String prefix) {
+    return Long.parseLong(name.substring(prefix.length(), name.length() - SEGMENT_EXT.length()));
+  }
+
+  @FunctionalInterface
+  public interface RecordVisitor {
+
+    void accept(long timestamp, double value);
+  }
+
+  @FunctionalInterface
+  private interface RawRecordVisitor {
+
+    void accept(int device, int endpoint, long timestamp, double value);
+  }
+
+  private static final class Segment {
+
+    private final long start;
+    private final Path path;
+    private final int capacity;
+    // next free slot of active segment, capacity for others
+    private final AtomicInteger reserved;
+    // mapped only while segment is active
+    private volatile MappedByteBuffer buffer;
+
+    private Segment(long start, Path path, int capacity) {
+      this.start = start;
+      this.path = path;
+      this.capacity = capacity;
+      this.reserved = new AtomicInteger(capacity);
+    }
+  }
+
+  private record AggregateKey(int device, int endpoint, long bucket) {
+  }
+
+  /**
+   * Append-only name dictionary. Line number in file is name id. Lookups are lock free, new names are written under
+   * lock
+   */
+  private static final class Dictionary {
+
+    private final Path path;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+    private Dictionary(Path path) throws IOException {
+      this.path = path;
+      if (Files.exists(path)) {
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+          ids.put(line, ids.size());
+        }
+      }
+    }
+
+    private int find(String name) {
+      return ids.getOrDefault(name, -1);
+    }
+
+    private int idOf(String name) throws IOException {
+      Integer id = ids.get(name);
+      if (id == null) {
+        synchronized (this) {
+          id = ids.get(name);
+          if (id == null) {
+            id = ids.size();
+            // records refer to id, so name must reach disk before first record of it
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+              StandardOpenOption.APPEND)) {
+              ByteBuffer line = ByteBuffer.wrap((name + "\n").getBytes(StandardCharsets.UTF_8));
+              while (line.hasRemaining()) {
+                channel.write(line);
+              }
+              channel.force(true);
+            }
+            ids.put(name, id);
+          }
+        }
+      }
+      return id;
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package org.homio.addon.tasmota;
+
+import lombok.extern.log4j.Log4j2;
+import org.homio.api.state.DecimalType;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+import static org.homio.api.model.endpoint.DeviceEndpoint.ENDPOINT_LAST_SEEN;
+
+/**
+ * Last seen timestamps of all devices in paged primitive table. Recording message is single volatile store, stamps are
+ * published to ENDPOINT_LAST_SEEN endpoints by periodic flush not often than once per resolution per device
+ */
+@Log4j2
+public class TasmotaLastSeenTracker {
+
+  private static final int PAGE_BITS = 10;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  private final Function<TasmotaDeviceEntity, TasmotaDeviceService> services;
+  private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+  // slots of unregistered devices, guarded by this
+  private final Deque<Integer> freeSlots = new ArrayDeque<>();
+  private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+  private volatile TasmotaDeviceEntity[] devices = new TasmotaDeviceEntity[0];
+  private volatile int size;
+
+  // accessed only from flush()
+  private long[] published = new long[0];
+  private long[] publishedAt = new long[0];
+
+  public TasmotaLastSeenTracker(@NotNull Function<TasmotaDeviceEntity, TasmotaDeviceService> services) {
+    this.services = services;
+  }
+
+  public synchronized int register(@NotNull TasmotaDeviceEntity entity) {
+    Integer slot = slots.get(entity.getIeeeAddress());
+    if (slot != null) {
+      devices[slot] = entity;
+      return slot;
+    }
+    Integer freeSlot = freeSlots.poll();
+    if (freeSlot != null) {
+      devices[freeSlot] = entity;
+      slots.put(entity.getIeeeAddress(), freeSlot);
+      return freeSlot;
+    }
+    int newSlot = size;
+    if (newSlot == devices.length) {
+      devices = Arrays.copyOf(devices, Math.max(PAGE_SIZE, devices.length * 2));
+    }
+    if ((newSlot >>> PAGE_BITS) == pages.length) {
+      AtomicLongArray[] newPages = Arrays.copyOf(pages, pages.length + 1);
+      newPages[pages.length] = new AtomicLongArray(PAGE_SIZE);
+      pages = newPages;
+    }
+    devices[newSlot] = entity;
+    slots.put(entity.getIeeeAddress(), newSlot);
+    size = newSlot + 1;
+    return newSlot;
+  }
+
+  /**
+   * Device has been removed, its slot is reused by next registered device
+   */
+  public synchronized void unregister(@NotNull String ieeeAddress) {
+    Integer slot = slots.remove(ieeeAddress);
+    if (slot != null) {
+      devices[slot] = null;
+      pages[slot >>> PAGE_BITS].set(slot & PAGE_MASK, 0);
+      freeSlots.add(slot);
+    }
+  }
+
+  public void touch(@NotNull String ieeeAddress) {
+    Integer slot = slots.get(ieeeAddress);
+    if (slot != null) {
+      pages[slot >>> PAGE_BITS].set(slot & PAGE_MASK, System.currentTimeMillis());
+    }
+  }
+
+  public long getLastSeen(@NotNull String ieeeAddress) {
+    Integer slot = slots.get(ieeeAddress);
+    return slot == null ? 0 : pages[slot >>> PAGE_BITS].get(slot & PAGE_MASK);
+  }
+
+  /**
+   * Publish changed stamps to endpoints
+   *
+   * @param resolution - min interval in ms between two publishes for same device
+   */
+  public synchronized void flush(long resolution) {
+    int count = size;
+    TasmotaDeviceEntity[] devices = this.devices;
+    AtomicLongArray[] pages = this.pages;
+    if (published.length < count) {
+      published = Arrays.copyOf(published, devices.length);
+      publishedAt = Arrays.copyOf(publishedAt, devices.length);
+    }
+    long now = System.currentTimeMillis();
+    for (int slot = 0; slot < count; slot++) {
+      TasmotaDeviceEntity device = devices[slot];
+      if (device == null) {
+        published[slot] = 0;
+        publishedAt[slot] = 0;
+        continue;
+      }
+      long stamp = pages[slot >>> PAGE_BITS].get(slot & PAGE_MASK);
+      if (stamp > published[slot] && now - publishedAt[slot] >= resolution) {
+        // one failing device must not stop publishing of others
+        try {
+          TasmotaEndpoint endpoint = services.apply(device).getEndpoints().get(ENDPOINT_LAST_SEEN);
+          if (endpoint != null) {
+            endpoint.setValue(new DecimalType(stamp), true);
+            published[slot] = stamp;
+            publishedAt[slot] = now;
+          }
+        } catch (Exception ex) {
+          log.warn("Unable to publish last seen of device: {}", device.getIeeeAddress(), ex);
+        }
+      }
+    }
+  }
+}
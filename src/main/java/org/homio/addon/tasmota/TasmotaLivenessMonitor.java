@@ -0,0 +1,190 @@
+package org.homio.addon.tasmota;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Hashed timer wheel of expected next message deadlines for whole fleet. Deadline is TelePeriod of device multiplied by
+ * grace. Message only moves deadline forward with volatile store, entry stays in its slot and is re-inserted lazily when
+ * slot is reached, so cost of message and of tick doesn't depend on fleet size. Earlier deadline (shorter TelePeriod)
+ * inserts new node and leaves old one stale. Device which misses deadline is reported silent once, and alive again on
+ * next message which onAlive accepts
+ */
+public class TasmotaLivenessMonitor {
+
+  private static final int WHEEL_SIZE = 512;
+  private static final long TICK = TimeUnit.SECONDS.toMillis(1);
+  // Tasmota default TelePeriod, used until device reports own one
+  private static final int DEFAULT_TELE_PERIOD = 300;
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  @SuppressWarnings("unchecked")
+  private final ArrayDeque<Node>[] wheel = new ArrayDeque[WHEEL_SIZE];
+  private final Consumer<TasmotaDeviceEntity> onSilent;
+  // returns false if message doesn't prove device is alive, device stays silent
+  private final Predicate<TasmotaDeviceEntity> onAlive;
+  private final LongSupplier clock;
+  private volatile int grace = 3;
+  // accessed under lock
+  private long lastTick;
+
+  public TasmotaLivenessMonitor(@NotNull Consumer<TasmotaDeviceEntity> onSilent,
+                                @NotNull Predicate<TasmotaDeviceEntity> onAlive) {
+    this(onSilent, onAlive, System::currentTimeMillis);
+  }
+
+  /**
+   * @param clock - current time in ms, simulated by benchmark
+   */
+  TasmotaLivenessMonitor(@NotNull Consumer<TasmotaDeviceEntity> onSilent,
+                         @NotNull Predicate<TasmotaDeviceEntity> onAlive,
+                         @NotNull LongSupplier clock) {
+    this.onSilent = onSilent;
+    this.onAlive = onAlive;
+    this.clock = clock;
+    this.lastTick = clock.getAsLong() / TICK;
+    for (int i = 0; i < WHEEL_SIZE; i++) {
+      wheel[i] = new ArrayDeque<>();
+    }
+  }
+
+  public void register(@NotNull TasmotaDeviceEntity device) {
+    Entry entry = entries.computeIfAbsent(device.getIeeeAddress(), key -> new Entry(device));
+    entry.device = device;
+    reschedule(entry);
+  }
+
+  public void unregister(@NotNull String ieeeAddress) {
+    Entry entry = entries.remove(ieeeAddress);
+    if (entry != null) {
+      synchronized (this) {
+        // wheel nodes of entry become stale and entry is never scheduled again
+        entry.scheduledTick = -1;
+      }
+    }
+  }
+
+  /**
+   * Device has sent message
+   */
+  public void touch(@NotNull String ieeeAddress) {
+    Entry entry = entries.get(ieeeAddress);
+    if (entry != null) {
+      entry.deadline = deadline(entry);
+      if (entry.silent.compareAndSet(true, false)) {
+        if (onAlive.test(entry.device)) {
+          schedule(entry);
+        } else {
+          entry.silent.set(true);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param telePeriod - TelePeriod reported by device in seconds, 0 disables telemetry and liveness check of device
+   */
+  public void setTelePeriod(@NotNull String ieeeAddress, int telePeriod) {
+    Entry entry = entries.get(ieeeAddress);
+    if (entry != null && entry.telePeriod != telePeriod) {
+      entry.telePeriod = telePeriod;
+      reschedule(entry);
+    }
+  }
+
+  /**
+   * Expire devices which deadline has passed
+   *
+   * @param grace - number of missed TelePeriods after which device is silent, 0 disables check
+   */
+  public void tick(int grace) {
+    this.grace = grace;
+    long now = clock.getAsLong();
+    synchronized (this) {
+      long currentTick = now / TICK;
+      // wheel revolution covers all slots, longer pause doesn't need more passes
+      long from = Math.max(lastTick + 1, currentTick - WHEEL_SIZE + 1);
+      for (long tick = from; tick <= currentTick; tick++) {
+        ArrayDeque<Node> slot = wheel[(int) (tick % WHEEL_SIZE)];
+        for (int count = slot.size(); count > 0; count--) {
+          Node node = slot.poll();
+          Entry entry = node.entry;
+          if (node.tick != entry.scheduledTick) {
+            continue; // entry has been rescheduled to earlier tick or unregistered
+          }
+          if (node.tick > tick) {
+            slot.add(node); // beyond wheel span, wait for next revolution
+            continue;
+          }
+          entry.scheduledTick = 0;
+          if (entry.deadline > now) {
+            schedule(entry);
+          } else if (grace > 0 && entry.telePeriod > 0 && entry.silent.compareAndSet(false, true)) {
+            onSilent.accept(entry.device);
+          } else if (!entry.silent.get()) {
+            // check disabled, keep entry in wheel until it is enabled again
+            entry.deadline = now + WHEEL_SIZE * TICK;
+            schedule(entry);
+          }
+        }
+      }
+      lastTick = currentTick;
+    }
+  }
+
+  public long getSilentCount() {
+    return entries.values().stream().filter(entry -> entry.silent.get()).count();
+  }
+
+  private long deadline(Entry entry) {
+    int telePeriod = entry.telePeriod < 0 ? DEFAULT_TELE_PERIOD : entry.telePeriod;
+    return clock.getAsLong() + TimeUnit.SECONDS.toMillis(telePeriod) * Math.max(grace, 1);
+  }
+
+  private void schedule(Entry entry) {
+    schedule(entry, false);
+  }
+
+  private void reschedule(Entry entry) {
+    entry.deadline = deadline(entry);
+    if (!entry.silent.get()) {
+      schedule(entry, true);
+    }
+  }
+
+  /**
+   * @param earlier - also move already scheduled entry if its deadline is now earlier
+   */
+  private synchronized void schedule(Entry entry, boolean earlier) {
+    long tick = Math.max(entry.deadline / TICK, lastTick + 1);
+    if (entry.scheduledTick == 0 || (earlier && tick < entry.scheduledTick)) {
+      entry.scheduledTick = tick;
+      wheel[(int) (tick % WHEEL_SIZE)].add(new Node(entry, tick));
+    }
+  }
+
+  private static class Entry {
+
+    private final AtomicBoolean silent = new AtomicBoolean();
+    private volatile TasmotaDeviceEntity device;
+    private volatile long deadline;
+    private volatile int telePeriod = -1;
+    // tick of live wheel node, 0 if not in wheel, -1 if unregistered. Accessed under monitor lock
+    private long scheduledTick;
+
+    private Entry(TasmotaDeviceEntity device) {
+      this.device = device;
+    }
+  }
+
+  private record Node(Entry entry, long tick) {
+  }
+}
@@ -0,0 +1,122 @@
+package org.homio.addon.tasmota;
+
+import lombok.extern.log4j.Log4j2;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Hands incoming messages to per-key (device) mailboxes drained on virtual threads. Messages of same key are processed
+ * in order, different keys are processed in parallel. Dispatching never blocks: messages over mailbox capacity are
+ * dropped. Messages dispatched while dispatcher is stopped wait in mailbox until start
+ */
+@Log4j2
+public class TasmotaMessageDispatcher {
+
+  private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+  private final IntSupplier capacity;
+  private final LongAdder dropped = new LongAdder();
+  private volatile ExecutorService executor;
+
+  public TasmotaMessageDispatcher(@NotNull IntSupplier capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * @return false if mailbox is full and task has been dropped
+   */
+  public boolean dispatch(@NotNull String key, @NotNull Runnable task) {
+    return mailboxes.computeIfAbsent(key, Mailbox::new).offer(task);
+  }
+
+  public synchronized void start() {
+    if (executor == null) {
+      executor = Executors.newVirtualThreadPerTaskExecutor();
+      mailboxes.values().forEach(Mailbox::schedule);
+    }
+  }
+
+  public synchronized void shutdown() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    mailboxes.clear();
+  }
+
+  public long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  public int getPendingCount() {
+    return mailboxes.values().stream().mapToInt(mailbox -> mailbox.size.get()).sum();
+  }
+
+  private final class Mailbox {
+
+    private final String key;
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private Mailbox(String key) {
+      this.key = key;
+    }
+
+    private boolean offer(Runnable task) {
+      if (size.incrementAndGet() > capacity.getAsInt()) {
+        size.decrementAndGet();
+        dropped.increment();
+        log.warn("Tasmota mailbox '{}' is full. Drop message", key);
+        return false;
+      }
+      queue.add(task);
+      schedule();
+      return true;
+    }
+
+    private void schedule() {
+      if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+        ExecutorService executor = TasmotaMessageDispatcher.this.executor;
+        try {
+          if (executor != null) {
+            executor.execute(this::drain);
+            return;
+          }
+        } catch (RejectedExecutionException ignore) {
+          // dispatcher has been shut down meanwhile
+        }
+        // not started, start() schedules mailbox again. Recheck in case it has run before flag reset
+        scheduled.set(false);
+        if (TasmotaMessageDispatcher.this.executor != null) {
+          schedule();
+        }
+      }
+    }
+
+    private void drain() {
+      Runnable task;
+      while ((task = queue.poll()) != null) {
+        size.decrementAndGet();
+        try {
+          task.run();
+        } catch (Exception ex) {
+          log.error("Error while processing tasmota message for '{}'", key, ex);
+        }
+      }
+      scheduled.set(false);
+      // message may have been added after last poll but before flag reset
+      schedule();
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package org.homio.addon.tasmota;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Lock-free hot path counters and latency histograms. Recording doesn't allocate, per-second rates are computed by
+ * periodic sample()
+ */
+public class TasmotaMetrics {
+
+  private final LongAdder[] messages = new LongAdder[MessageType.values().length];
+  private final LongAdder endpointWrites = new LongAdder();
+  private final LongAdder publishes = new LongAdder();
+  private final LongAdder discoveryEvents = new LongAdder();
+  private final LongAdder unknownTopicDrops = new LongAdder();
+  private final Histogram routeLatency = new Histogram();
+  private final Histogram handlePayloadLatency = new Histogram();
+  private final Histogram updateMqttLatency = new Histogram();
+
+  // accessed only from sample()
+  private final long[] lastMessages = new long[MessageType.values().length];
+  private long lastEndpointWrites;
+  private long lastPublishes;
+  private long lastSampleTime = System.nanoTime();
+
+  private volatile double[] messageRates = new double[MessageType.values().length];
+  private volatile double endpointWriteRate;
+  private volatile double publishRate;
+
+  public TasmotaMetrics() {
+    for (int i = 0; i < messages.length; i++) {
+      messages[i] = new LongAdder();
+    }
+  }
+
+  public void recordMessage(@NotNull MessageType type) {
+    messages[type.ordinal()].increment();
+  }
+
+  public void recordEndpointWrite() {
+    endpointWrites.increment();
+  }
+
+  public void recordPublish() {
+    publishes.increment();
+  }
+
+  public void recordDiscovery() {
+    discoveryEvents.increment();
+  }
+
+  public void recordUnknownTopic() {
+    unknownTopicDrops.increment();
+  }
+
+  public void recordRoute(long nanos) {
+    routeLatency.record(nanos);
+  }
+
+  public void recordHandlePayload(long nanos) {
+    handlePayloadLatency.record(nanos);
+  }
+
+  public void recordUpdateMqtt(long nanos) {
+    updateMqttLatency.record(nanos);
+  }
+
+  /**
+   * Recalculate per-second rates since previous sample
+   */
+  public synchronized void sample() {
+    long now = System.nanoTime();
+    double seconds = Math.max(1, now - lastSampleTime) / (double) TimeUnit.SECONDS.toNanos(1);
+    lastSampleTime = now;
+    double[] rates = new double[messages.length];
+    for (int i = 0; i < messages.length; i++) {
+      long count = messages[i].sum();
+      rates[i] = (count - lastMessages[i]) / seconds;
+      lastMessages[i] = count;
+    }
+    messageRates = rates;
+    long writes = endpointWrites.sum();
+    endpointWriteRate = (writes - lastEndpointWrites) / seconds;
+    lastEndpointWrites = writes;
+    long published = publishes.sum();
+    publishRate = (published - lastPublishes) / seconds;
+    lastPublishes = published;
+  }
+
+  public @NotNull String getMessageRates() {
+    double[] rates = messageRates;
+    return Arrays.stream(MessageType.values())
+      .map(type -> "%s: %.1f/s".formatted(type, rates[type.ordinal()]))
+      .collect(Collectors.joining(", "));
+  }
+
+  public @NotNull String getLatencies() {
+    return "route: %s; handlePayload: %s; updateMqtt: %s".formatted(routeLatency, handlePayloadLatency, updateMqttLatency);
+  }
+
+  public @NotNull String getThroughput() {
+    return "endpoint writes: %.1f/s, publishes: %.1f/s".formatted(endpointWriteRate, publishRate);
+  }
+
+  public long getDiscoveryEvents() {
+    return discoveryEvents.sum();
+  }
+
+  public long getUnknownTopicDrops() {
+    return unknownTopicDrops.sum();
+  }
+
+  public @NotNull Histogram getRouteLatency() {
+    return routeLatency;
+  }
+
+  public @NotNull Histogram getHandlePayloadLatency() {
+    return handlePayloadLatency;
+  }
+
+  public @NotNull Histogram getUpdateMqttLatency() {
+    return updateMqttLatency;
+  }
+
+  public enum MessageType {
+    STATE, SENSOR, RESULT, STATUS, LWT, LOGGING, OTHER;
+
+    public static @NotNull MessageType of(@NotNull String topic) {
+      if (topic.endsWith("/STATE")) {
+        return STATE;
+      } else if (topic.endsWith("/SENSOR")) {
+        return SENSOR;
+      } else if (topic.endsWith("/RESULT")) {
+        return RESULT;
+      } else if (topic.endsWith("/LWT")) {
+        return LWT;
+      } else if (topic.endsWith("/LOGGING")) {
+        return LOGGING;
+      } else if (topic.contains("/STATUS")) {
+        return STATUS;
+      }
+      return OTHER;
+    }
+  }
+
+  /**
+   * Latency histogram with power of two nanoseconds buckets
+   */
+  public static final class Histogram {
+
+    private static final int BUCKETS = 64;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+
+    public void record(long nanos) {
+      int bucket = nanos <= 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(nanos);
+      buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+      count.increment();
+      total.add(nanos);
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public double getMean() {
+      long samples = count.sum();
+      return samples == 0 ? 0 : total.sum() / (double) samples;
+    }
+
+    /**
+     * @param percentile - value in (0, 1]
+     * @return upper bound in nanos of bucket which contains percentile
+     */
+    public long getPercentile(double percentile) {
+      long samples = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        samples += buckets.get(i);
+      }
+      long target = (long) Math.ceil(samples * percentile);
+      long cumulative = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        cumulative += buckets.get(i);
+        if (cumulative >= target && cumulative > 0) {
+          return i == 0 ? 0 : 1L << Math.min(i, 62);
+        }
+      }
+      return 0;
+    }
+
+    @Override
+    public String toString() {
+      return "p50 %s, p99 %s".formatted(format(getPercentile(0.5)), format(getPercentile(0.99)));
+    }
+
+    private static String format(long nanos) {
+      if (nanos < 1000) {
+        return nanos + "ns";
+      } else if (nanos < 1_000_000) {
+        return (nanos / 1000) + "µs";
+      }
+      return (nanos / 1_000_000) + "ms";
+    }
+  }
+}
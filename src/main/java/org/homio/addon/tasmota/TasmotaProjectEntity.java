@@ -2,6 +2,7 @@ package org.homio.addon.tasmota;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.persistence.Entity;
+import jakarta.validation.constraints.Min;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.SneakyThrows;
@@ -14,8 +15,11 @@ import org.homio.api.entity.device.DeviceBaseEntity;
 import org.homio.api.entity.log.HasEntityLog;
 import org.homio.api.service.EntityService;
 import org.homio.api.ui.field.UIField;
+import org.homio.api.ui.field.UIFieldGroup;
 import org.homio.api.ui.field.UIFieldLinkToRoute;
+import org.homio.api.ui.field.UIFieldSlider;
 import org.homio.api.ui.field.UIFieldType;
+import org.homio.api.ui.field.condition.UIFieldShowOnCondition;
 import org.homio.api.ui.field.color.UIFieldColorRef;
 import org.homio.api.ui.field.inline.UIFieldInlineEntities;
 import org.homio.api.ui.field.inline.UIFieldInlineEntityWidth;
@@ -31,7 +35,6 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import static org.homio.addon.tasmota.TasmotaEntrypoint.TASMOTA_COLOR;
 import static org.homio.addon.tasmota.TasmotaEntrypoint.TASMOTA_ICON;
@@ -51,16 +54,74 @@ public class TasmotaProjectEntity extends DeviceBaseEntity
       """;
   }
 
+  @UIField(order = 30, hideInEdit = true, hideOnEmpty = true)
+  public String getInitialQueryProgress() {
+    return optService().map(service -> service.getQueryScheduler().getProgress()).orElse(null);
+  }
+
+  @UIField(order = 35, hideInEdit = true, hideOnEmpty = true)
+  @UIFieldGroup("METRICS")
+  public String getStartupTime() {
+    return optService().map(TasmotaProjectService::getStartupTime).orElse(null);
+  }
+
+  @UIField(order = 40, hideInEdit = true, hideOnEmpty = true)
+  @UIFieldGroup("METRICS")
+  public String getMessageRates() {
+    return optService().map(service -> service.getMetrics().getMessageRates()).orElse(null);
+  }
+
+  @UIField(order = 41, hideInEdit = true, hideOnEmpty = true)
+  @UIFieldGroup("METRICS")
+  public String getThroughput() {
+    return optService().map(service -> service.getMetrics().getThroughput()).orElse(null);
+  }
+
+  @UIField(order = 42, hideInEdit = true, hideOnEmpty = true)
+  @UIFieldGroup("METRICS")
+  public String getLatencies() {
+    return optService().map(service -> service.getMetrics().getLatencies()).orElse(null);
+  }
+
+  @UIField(order = 43, hideInEdit = true, hideOnEmpty = true)
+  @UIFieldGroup("METRICS")
+  public Long getDiscoveryEvents() {
+    return optService().map(service -> service.getMetrics().getDiscoveryEvents()).orElse(null);
+  }
+
+  @UIField(order = 44, hideInEdit = true, hideOnEmpty = true)
+  @UIFieldGroup("METRICS")
+  public Long getUnknownTopicDrops() {
+    return optService().map(service -> service.getMetrics().getUnknownTopicDrops()).orElse(null);
+  }
+
+  @UIField(order = 45, hideInEdit = true, hideOnEmpty = true)
+  @UIFieldGroup("METRICS")
+  public Long getMailboxDrops() {
+    return optService().map(service -> service.getDispatcher().getDroppedCount()).orElse(null);
+  }
+
+  @UIField(order = 46, hideInEdit = true, hideOnEmpty = true)
+  @UIFieldGroup("METRICS")
+  public String getCatalogs() {
+    return optService().map(service -> {
+      TasmotaCatalogStore store = service.getCatalogStore();
+      return "%d firmware catalogs, %d shared nodes, %d queries skipped".formatted(
+        store.getCatalogCount(), store.getNodeCount(), store.getSkippedQueries());
+    }).orElse(null);
+  }
+
+  @UIField(order = 47, hideInEdit = true, hideOnEmpty = true)
+  @UIFieldGroup("METRICS")
+  public Long getSilentDevices() {
+    return optService().map(service -> service.getLivenessMonitor().getSilentCount()).orElse(null);
+  }
+
   @UIField(order = 9999, disableEdit = true, hideInEdit = true)
   @UIFieldInlineEntities(bg = "#27FF000D")
   public List<DeviceEntity> getDevices() {
     return optService()
-      .map(service ->
-        service.getExistedDevices().values()
-          .stream()
-          .sorted()
-          .map(DeviceEntity::new)
-          .collect(Collectors.toList()))
+      .map(TasmotaProjectService::getDeviceList)
       .orElse(Collections.emptyList());
   }
 
@@ -102,7 +163,7 @@ public class TasmotaProjectEntity extends DeviceBaseEntity
 
   @Override
   public long getEntityServiceHashCode() {
-    return getJsonDataHashCode("mqtt");
+    return getJsonDataHashCode("mqtt", "cqs", "hp", "hss", "rec");
   }
 
   @UIField(order = 500, type = UIFieldType.Chips)
@@ -114,6 +175,225 @@ public class TasmotaProjectEntity extends DeviceBaseEntity
     setJsonData("tp", value);
   }
 
+  @UIField(order = 505)
+  @UIFieldGroup("PERFORMANCE")
+  public boolean isUseBacklog() {
+    return getJsonData("bl", true);
+  }
+
+  public void setUseBacklog(boolean value) {
+    setJsonData("bl", value);
+  }
+
+  @UIField(order = 510)
+  @UIFieldSlider(min = 1, max = 60)
+  @UIFieldGroup("PERFORMANCE")
+  public int getLastSeenResolution() {
+    return getJsonData("lsr", 5);
+  }
+
+  public void setLastSeenResolution(int value) {
+    setJsonData("lsr", value);
+  }
+
+  @UIField(order = 520)
+  @UIFieldSlider(min = 1, max = 500)
+  @UIFieldGroup("PERFORMANCE")
+  public int getQueryRate() {
+    return getJsonData("qr", 50);
+  }
+
+  public void setQueryRate(int value) {
+    setJsonData("qr", value);
+  }
+
+  @UIField(order = 530)
+  @UIFieldSlider(min = 0, max = 120)
+  @UIFieldGroup("PERFORMANCE")
+  public int getQueryJitter() {
+    return getJsonData("qj", 10);
+  }
+
+  public void setQueryJitter(int value) {
+    setJsonData("qj", value);
+  }
+
+  @UIField(order = 540)
+  @UIFieldSlider(min = 0, max = 1000)
+  @UIFieldGroup("PERFORMANCE")
+  public int getCommandFlushInterval() {
+    return getJsonData("cfi", 50);
+  }
+
+  public void setCommandFlushInterval(int value) {
+    setJsonData("cfi", value);
+  }
+
+  @UIField(order = 550)
+  @UIFieldGroup("PERFORMANCE")
+  public int getCommandQueueSize() {
+    return getJsonData("cqs", 10000);
+  }
+
+  public void setCommandQueueSize(@Min(100) int value) {
+    setJsonData("cqs", value);
+  }
+
+  @UIField(order = 560)
+  @UIFieldGroup("PERFORMANCE")
+  public int getMailboxSize() {
+    return getJsonData("mbs", 1000);
+  }
+
+  public void setMailboxSize(@Min(10) int value) {
+    setJsonData("mbs", value);
+  }
+
+  @UIField(order = 570)
+  @UIFieldSlider(min = 0, max = 5000)
+  @UIFieldGroup("PERFORMANCE")
+  public int getUiUpdateWindow() {
+    return getJsonData("uiw", 250);
+  }
+
+  public void setUiUpdateWindow(int value) {
+    setJsonData("uiw", value);
+  }
+
+  @UIField(order = 580)
+  @UIFieldGroup("PERFORMANCE")
+  public int getUiFleetThreshold() {
+    return getJsonData("uift", 50);
+  }
+
+  public void setUiFleetThreshold(@Min(1) int value) {
+    setJsonData("uift", value);
+  }
+
+  @UIField(order = 590)
+  @UIFieldSlider(min = 0, max = 10)
+  @UIFieldGroup("PERFORMANCE")
+  public int getLivenessGrace() {
+    return getJsonData("lg", 3);
+  }
+
+  public void setLivenessGrace(int value) {
+    setJsonData("lg", value);
+  }
+
+  @UIField(order = 600)
+  @UIFieldSlider(min = 0, max = 3600)
+  @UIFieldGroup("HISTORY")
+  public int getHistoryRawSize() {
+    return getJsonData("hrs", 60);
+  }
+
+  public void setHistoryRawSize(int value) {
+    setJsonData("hrs", value);
+  }
+
+  @UIField(order = 610)
+  @UIFieldSlider(min = 0, max = 1440)
+  @UIFieldGroup("HISTORY")
+  public int getHistoryMinuteSize() {
+    return getJsonData("hms", 120);
+  }
+
+  public void setHistoryMinuteSize(int value) {
+    setJsonData("hms", value);
+  }
+
+  @UIField(order = 620)
+  @UIFieldSlider(min = 0, max = 672)
+  @UIFieldGroup("HISTORY")
+  public int getHistoryQuarterSize() {
+    return getJsonData("hqs", 96);
+  }
+
+  public void setHistoryQuarterSize(int value) {
+    setJsonData("hqs", value);
+  }
+
+  @UIField(order = 640)
+  @UIFieldGroup("HISTORY")
+  public boolean isHistoryPersistence() {
+    return getJsonData("hp", false);
+  }
+
+  public void setHistoryPersistence(boolean value) {
+    setJsonData("hp", value);
+  }
+
+  @UIField(order = 650)
+  @UIFieldSlider(min = 1, max = 90)
+  @UIFieldGroup("HISTORY")
+  @UIFieldShowOnCondition("return context.get('historyPersistence')")
+  public int getHistoryRawRetention() {
+    return getJsonData("hrr", 7);
+  }
+
+  public void setHistoryRawRetention(int value) {
+    setJsonData("hrr", value);
+  }
+
+  @UIField(order = 660)
+  @UIFieldSlider(min = 1, max = 3650)
+  @UIFieldGroup("HISTORY")
+  @UIFieldShowOnCondition("return context.get('historyPersistence')")
+  public int getHistoryAggregateRetention() {
+    return getJsonData("har", 365);
+  }
+
+  public void setHistoryAggregateRetention(int value) {
+    setJsonData("har", value);
+  }
+
+  @UIField(order = 670)
+  @UIFieldGroup("HISTORY")
+  @UIFieldShowOnCondition("return context.get('historyPersistence')")
+  public int getHistorySegmentSize() {
+    return getJsonData("hss", 262144);
+  }
+
+  public void setHistorySegmentSize(@Min(1024) int value) {
+    setJsonData("hss", value);
+  }
+
+  @UIField(order = 630, hideInEdit = true)
+  @UIFieldGroup("HISTORY")
+  public String getHistoryMemoryPerEndpoint() {
+    long size = TasmotaTelemetryBuffer.estimateSize(getHistoryRawSize(), getHistoryMinuteSize(), getHistoryQuarterSize());
+    return "%.1f KB".formatted(size / 1024D);
+  }
+
+  @UIField(order = 700)
+  @UIFieldGroup("DIAGNOSTICS")
+  public boolean isRecordTraffic() {
+    return getJsonData("rec", false);
+  }
+
+  public void setRecordTraffic(boolean value) {
+    setJsonData("rec", value);
+  }
+
+  @UIField(order = 710)
+  @UIFieldSlider(min = 1, max = 2048)
+  @UIFieldGroup("DIAGNOSTICS")
+  @UIFieldShowOnCondition("return context.get('recordTraffic')")
+  public int getRecordMaxSize() {
+    return getJsonData("recms", 100);
+  }
+
+  public void setRecordMaxSize(int value) {
+    setJsonData("recms", value);
+  }
+
+  @UIField(order = 720, hideInEdit = true, hideOnEmpty = true)
+  @UIFieldGroup("DIAGNOSTICS")
+  public String getTrafficRecording() {
+    return optService().map(TasmotaProjectService::getRecorder).map(recorder -> recorder.getFile().toString()).orElse(null);
+  }
+
   @Override
   @SneakyThrows
   public @NotNull TasmotaProjectService createService(@NotNull Context context) {
@@ -154,11 +434,11 @@ public class TasmotaProjectEntity extends DeviceBaseEntity
 
     private String color;
 
-    public DeviceEntity(TasmotaDeviceEntity entity) {
-      color = entity.getStatus().getColor();
-      name = entity.getName();
-      ieeeAddress = entity.getIeeeAddress();
-      endpointsCount = entity.getEndpoints().size();
+    public DeviceEntity(TasmotaDeviceSummary summary) {
+      color = summary.getColor();
+      name = summary.name();
+      ieeeAddress = summary.ieeeAddress();
+      endpointsCount = summary.endpointsCount();
     }
   }
 }
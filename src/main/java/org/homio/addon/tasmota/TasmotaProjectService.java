@@ -1,36 +1,55 @@
 package org.homio.addon.tasmota;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
 import lombok.Getter;
 import org.apache.commons.lang3.StringUtils;
+import org.homio.addon.tasmota.TasmotaProjectEntity.DeviceEntity;
 import org.homio.api.Context;
+import org.homio.api.ContextBGP.ThreadContext;
 import org.homio.api.ContextService.MQTTEntityService;
 import org.homio.api.model.Icon;
 import org.homio.api.service.EntityService.ServiceInstance;
-import org.homio.api.state.DecimalType;
+import org.homio.api.util.CommonUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 import static org.homio.addon.tasmota.TasmotaEntrypoint.TASMOTA_COLOR;
 import static org.homio.addon.tasmota.TasmotaEntrypoint.TASMOTA_ICON;
-import static org.homio.api.model.endpoint.DeviceEndpoint.ENDPOINT_LAST_SEEN;
 
 @Getter
 public class TasmotaProjectService extends ServiceInstance<TasmotaProjectEntity> {
 
-  private static final Map<String, String> INITIAL_COMMANDS = new HashMap<>(
-    Map.of("status", "0", "template", "", "modules", "", "gpio", "", "gpios", "255",
+  private static final Map<String, String> INITIAL_COMMANDS = new LinkedHashMap<>(
+    Map.of("status", "0", "template", "", "gpio", "",
       "buttondebounce", "", "switchdebounce", "", "interlock", "", "blinktime", "",
       "blinkcount", "")
   );
+  /**
+   * Queried once firmware of device is known and catalog store has no catalogs of that firmware
+   */
+  public static final Map<String, String> CATALOG_COMMANDS = new LinkedHashMap<>(
+    Map.of(TasmotaCatalogStore.MODULES, "", TasmotaCatalogStore.GPIOS, "255"));
+  private static final String DISCOVERY_MAILBOX = "discovery";
+  private static final TextNode LWT_ONLINE = TextNode.valueOf("Online");
   public static TasmotaProjectService INSTANCE;
 
   static {
@@ -46,11 +65,57 @@ public class TasmotaProjectService extends ServiceInstance<TasmotaProjectEntity>
   }
 
   private final Set<String> lwts = new ConcurrentSkipListSet<>();
+  private final Set<String> restoringDevices = ConcurrentHashMap.newKeySet();
+  private final TasmotaTopicRouter router = new TasmotaTopicRouter();
+  private final TasmotaLastSeenTracker lastSeenTracker = new TasmotaLastSeenTracker(this::deviceService);
+  private final TasmotaQueryScheduler queryScheduler = new TasmotaQueryScheduler(this::publish);
+  private final TasmotaMessageDispatcher dispatcher = new TasmotaMessageDispatcher(() -> entity.getMailboxSize());
+  private final TasmotaMetrics metrics = new TasmotaMetrics();
+  // silence is handled in device mailbox, alive is reported by message which is already processed in it
+  private final TasmotaLivenessMonitor livenessMonitor = new TasmotaLivenessMonitor(
+    device -> dispatcher.dispatch(device.getIeeeAddress(), () -> deviceService(device).markSilent()),
+    device -> deviceService(device).markAlive());
+  private final TasmotaCatalogStore catalogStore = new TasmotaCatalogStore();
+  private final TasmotaUiUpdater uiUpdater = new TasmotaUiUpdater(
+    device -> context.ui().updateItem(device),
+    () -> context.ui().updateItems(TasmotaDeviceEntity.class));
+  private volatile TasmotaCommandSender commandSender;
+  /**
+   * Device service lookup. Soak test harness passes own one to run services outside homio entity registry
+   */
+  private final Function<TasmotaDeviceEntity, TasmotaDeviceService> deviceServices;
+  // ieee -> service resolved from registry. Dropped when service is destroyed or device unregistered
+  private final Map<String, TasmotaDeviceService> services = new ConcurrentHashMap<>();
+  // registry doesn't guarantee single service when device is requested concurrently for the first time, i.e. by restore
+  // and by device mailbox, so registry lookup of same device is serialized
+  private final Lock[] serviceLocks = IntStream.range(0, 64).mapToObj(i -> new ReentrantLock()).toArray(Lock[]::new);
+  private final AtomicLong deviceListVersion = new AtomicLong();
+  private volatile CachedDeviceList deviceList;
+  private volatile @Nullable TasmotaHistoryStore historyStore;
+  private volatile @Nullable TasmotaTrafficRecorder recorder;
+  private volatile String startupTime;
+  private ThreadContext<Void> historyMaintenance;
+  private ThreadContext<Void> lastSeenFlusher;
+  private ThreadContext<Void> queryTicker;
+  private ThreadContext<Void> metricsSampler;
+  private ThreadContext<Void> uiUpdateTicker;
+  private ThreadContext<Void> livenessTicker;
   private MQTTEntityService mqttEntityService;
-  private Map<String, TasmotaDeviceEntity> existedDevices = new HashMap<>();
+  private volatile String discoveryPatternsSource;
+  private volatile List<TasmotaTopicTemplate> discoveryPatterns = List.of();
 
   public TasmotaProjectService(@NotNull Context context, @NotNull TasmotaProjectEntity entity) {
+    this(context, entity, TasmotaDeviceEntity::getService);
+  }
+
+  /**
+   * @param deviceServices - lookup of initialized device service, entity service registry when running in homio
+   */
+  TasmotaProjectService(@NotNull Context context,
+                        @NotNull TasmotaProjectEntity entity,
+                        @NotNull Function<TasmotaDeviceEntity, TasmotaDeviceService> deviceServices) {
     super(context, entity, true, "Tasmota");
+    this.deviceServices = deviceServices;
     INSTANCE = this;
   }
 
@@ -62,30 +127,164 @@ public class TasmotaProjectService extends ServiceInstance<TasmotaProjectEntity>
   }
 
   public static @Nullable ParsedTopic parseTopic(String fullTopic, String topic) {
-    Pattern pattern = Pattern.compile(fullTopic
-                                        .replace("%topic%", "(.*?)")
-                                        .replace("%prefix%", "(.*?)") + "(.*)$");
-    Matcher matcher = pattern.matcher(topic);
-    if (matcher.matches()) {
-      return new ParsedTopic(matcher.group(1), matcher.group(2), matcher.group(3));
-    }
-    return null;
+    return TasmotaTopicTemplate.of(fullTopic).parse(topic);
   }
 
   private static String build_topic(TasmotaDeviceEntity entity, String prefix) {
-    return entity.getFullTopic()
-      .replace("%prefix%", prefix)
-      .replace("%topic%", entity.getIeeeAddress())
-      .replaceAll("/+$", "");
+    return TasmotaTopicTemplate.of(entity.getFullTopic()).build(prefix, entity.getIeeeAddress());
   }
 
   public void dispose(@Nullable Exception ignore) {
+    if (lastSeenFlusher != null) {
+      lastSeenFlusher.cancel();
+      lastSeenFlusher = null;
+    }
+    if (queryTicker != null) {
+      queryTicker.cancel();
+      queryTicker = null;
+    }
+    if (metricsSampler != null) {
+      metricsSampler.cancel();
+      metricsSampler = null;
+    }
+    if (uiUpdateTicker != null) {
+      uiUpdateTicker.cancel();
+      uiUpdateTicker = null;
+    }
+    if (livenessTicker != null) {
+      livenessTicker.cancel();
+      livenessTicker = null;
+    }
+    if (commandSender != null) {
+      commandSender.stop();
+    }
+    dispatcher.shutdown();
+    closeHistoryStore();
+    stopRecording();
     updateNotificationBlock();
   }
 
+  public Map<String, TasmotaDeviceEntity> getExistedDevices() {
+    return router.getDevices();
+  }
+
+  /**
+   * Device list projection in entity order. Rebuilt from device summaries only after some summary has been changed
+   */
+  public List<DeviceEntity> getDeviceList() {
+    long version = deviceListVersion.get();
+    CachedDeviceList cached = deviceList;
+    if (cached != null && cached.version == version) {
+      return cached.devices;
+    }
+    List<DeviceEntity> list = router.getDevices().values().stream()
+      .sorted()
+      .map(device -> new DeviceEntity(deviceService(device).getSummary()))
+      .toList();
+    // tagged with version read before rebuild, so invalidation during rebuild is not lost
+    deviceList = new CachedDeviceList(version, list);
+    return list;
+  }
+
+  /**
+   * @return history buffer with configured capacities or null if history is disabled
+   */
+  public @Nullable TasmotaTelemetryBuffer createTelemetryBuffer() {
+    int raw = entity.getHistoryRawSize();
+    int minute = entity.getHistoryMinuteSize();
+    int quarter = entity.getHistoryQuarterSize();
+    if (raw + minute + quarter == 0) {
+      return null;
+    }
+    return new TasmotaTelemetryBuffer(raw, minute, quarter);
+  }
+
+  /**
+   * Open, reopen with new segment size or close history store according to settings
+   */
+  private synchronized void applyHistoryStore() {
+    TasmotaHistoryStore current = historyStore;
+    if (entity.isHistoryPersistence() && current != null && current.getSegmentRecords() == entity.getHistorySegmentSize()) {
+      return;
+    }
+    closeHistoryStore();
+    if (!entity.isHistoryPersistence()) {
+      return;
+    }
+    try {
+      TasmotaHistoryStore store = new TasmotaHistoryStore(CommonUtils.getFilesPath().resolve("tasmota-history"), entity.getHistorySegmentSize());
+      historyStore = store;
+      historyMaintenance = context.bgp().builder("tasmota-history-maintenance")
+        .intervalWithDelay(Duration.ofMinutes(10))
+        .execute(() -> store.maintain(
+          TimeUnit.DAYS.toMillis(entity.getHistoryRawRetention()),
+          TimeUnit.DAYS.toMillis(entity.getHistoryAggregateRetention())));
+    } catch (Exception ex) {
+      log.error("[{}]: Unable to open tasmota history store", entityID, ex);
+    }
+  }
+
+  private synchronized void closeHistoryStore() {
+    if (historyMaintenance != null) {
+      historyMaintenance.cancel();
+      historyMaintenance = null;
+    }
+    if (historyStore != null) {
+      historyStore.close();
+      historyStore = null;
+    }
+  }
+
+  /**
+   * Create command sender or replace it when queue size has been changed. Pending commands move to new sender
+   */
+  private synchronized void applyCommandQueueSize() {
+    TasmotaCommandSender current = commandSender;
+    if (current != null && current.getCapacity() == entity.getCommandQueueSize()) {
+      return;
+    }
+    TasmotaCommandSender sender = new TasmotaCommandSender(entity.getCommandQueueSize(), entity::getCommandFlushInterval,
+      (topic, payload) -> {
+        mqttEntityService.publish(topic, payload);
+        metrics.recordPublish();
+      });
+    sender.start(context);
+    commandSender = sender;
+    if (current != null) {
+      current.stop();
+      current.transferTo(sender);
+    }
+  }
+
+  public void invalidateDeviceList() {
+    deviceListVersion.incrementAndGet();
+  }
+
+  /**
+   * Queue command for async publishing. Not yet sent command with same key is replaced unless command is not idempotent
+   */
   public void publish(TasmotaDeviceEntity entity, String key, String value) {
     String command = cmndTopic(entity, key);
-    mqttEntityService.publish(command, value.getBytes());
+    commandSender.send(command, value.getBytes(), TasmotaCommandSender.isIdempotent(key, value));
+  }
+
+  /**
+   * Publish several commands. Commands are packed into Backlog payloads if device firmware supports it
+   *
+   * @return number of published mqtt messages
+   */
+  public int publish(TasmotaDeviceEntity entity, Map<String, String> commands) {
+    if (commands.size() > 1 && entity.isBacklogSupported() && this.entity.isUseBacklog()) {
+      List<String> batches = TasmotaCommandBatcher.pack(commands);
+      for (String batch : batches) {
+        publish(entity, TasmotaCommandBatcher.BACKLOG, batch);
+      }
+      return batches.size();
+    }
+    for (Entry<String, String> command : commands.entrySet()) {
+      publish(entity, command.getKey(), command.getValue());
+    }
+    return commands.size();
   }
 
   public String tele_topic(TasmotaDeviceEntity entity, String endpoint) {
@@ -95,11 +294,22 @@ public class TasmotaProjectService extends ServiceInstance<TasmotaProjectEntity>
     return build_topic(entity, "tele");
   }
 
-  public void initialQuery(TasmotaDeviceEntity device) {
-    for (Entry<String, String> command : INITIAL_COMMANDS.entrySet()) {
-      String cmd = cmndTopic(device, command.getKey());
-      mqttEntityService.publish(cmd, command.getValue().getBytes());
-    }
+  /**
+   * Schedule initial query of device
+   *
+   * @param urgent - user waits for result, i.e. refresh action
+   */
+  public void initialQuery(TasmotaDeviceEntity device, boolean urgent) {
+    int priority = urgent ? TasmotaQueryScheduler.PRIORITY_URGENT :
+      StringUtils.isEmpty(device.getFirmwareVersion()) ? TasmotaQueryScheduler.PRIORITY_NEW : TasmotaQueryScheduler.PRIORITY_NORMAL;
+    queryScheduler.schedule(device, INITIAL_COMMANDS, priority, TimeUnit.SECONDS.toMillis(entity.getQueryJitter()));
+  }
+
+  /**
+   * Schedule query of modules/gpios catalogs of device, i.e. on user refresh
+   */
+  public void queryCatalogs(TasmotaDeviceEntity device) {
+    queryScheduler.schedule(device, CATALOG_COMMANDS, TasmotaQueryScheduler.PRIORITY_URGENT, 0);
   }
 
   @Override
@@ -109,103 +319,330 @@ public class TasmotaProjectService extends ServiceInstance<TasmotaProjectEntity>
 
   @Override
   protected void initialize() {
+    applyCommandQueueSize();
+    applyHistoryStore();
+    if (entity.isRecordTraffic()) {
+      startRecording();
+    } else {
+      stopRecording();
+    }
     entity.setStatusOnline();
   }
 
+  /**
+   * @return active traffic recorder, null if recording is off or has stopped on max size
+   */
+  public @Nullable TasmotaTrafficRecorder getRecorder() {
+    TasmotaTrafficRecorder recorder = this.recorder;
+    return recorder == null || recorder.isClosed() ? null : recorder;
+  }
+
+  private synchronized void startRecording() {
+    if (recorder != null && !recorder.isClosed()) {
+      return;
+    }
+    Path file = CommonUtils.getFilesPath().resolve("tasmota-recordings").resolve("traffic-%d.bin".formatted(System.currentTimeMillis()));
+    try {
+      recorder = new TasmotaTrafficRecorder(file, entity.getRecordMaxSize() * 1024L * 1024L, router.getDevices().values());
+      log.info("[{}]: Recording tasmota traffic to {}", entityID, file);
+    } catch (Exception ex) {
+      log.error("[{}]: Unable to start tasmota traffic recording", entityID, ex);
+    }
+  }
+
+  private synchronized void stopRecording() {
+    if (recorder != null) {
+      recorder.close();
+      recorder = null;
+    }
+  }
+
   @Override
   protected void firstInitialize() {
     context.var().createGroup("tasmota", "Tasmota", builder ->
       builder.setLocked(true).setIcon(new Icon(TASMOTA_ICON, TASMOTA_COLOR)));
 
     mqttEntityService = entity.getMqttEntityService();
-    existedDevices = context.db().findAll(TasmotaDeviceEntity.class)
-      .stream()
-      .collect(Collectors.toMap(TasmotaDeviceEntity::getIeeeAddress, t -> t));
+    applyCommandQueueSize();
+    dispatcher.start();
+    applyHistoryStore();
+    long started = System.currentTimeMillis();
+    List<TasmotaDeviceEntity> devices = context.db().findAll(TasmotaDeviceEntity.class);
+    for (TasmotaDeviceEntity device : devices) {
+      registerDevice(device);
+    }
+    // routing is ready, services of restored devices are created in background or on first message
     mqttEntityService.addPayloadListener(Set.of("tele/#", "stat/#", "cmnd/#", "+/tele/#", "+/stat/#", "+/cmnd/#"),
-      "tasmota", entityID, log, (topic, payload) -> {
-        MatchDeviceData data = findDevice(topic);
-        if (data != null) {
-          data.entity.getService().getEndpoints().get(ENDPOINT_LAST_SEEN)
-            .setValue(new DecimalType(System.currentTimeMillis()), true);
-
-          if (topic.endsWith("LWT")) {
-            String msg = payload.get("raw").asText("Offline");
-            data.entity.getService().put("LWT", msg);
-            if ("Online".equals(msg)) {
-              initialQuery(data.entity);
-            }
-          } else {
-            // forward the message for processing
-            data.entity.getService().mqttUpdate(payload, data);
-          }
+      "tasmota", entityID, log, this::dispatchMessage);
+    restoreDevices(devices, started);
+    log.info("[{}]: Tasmota listens with {} devices in {}ms", entityID, devices.size(),
+      System.currentTimeMillis() - started);
+    lastSeenFlusher = context.bgp().builder("tasmota-last-seen")
+      .intervalWithDelay(Duration.ofSeconds(1))
+      .execute(() -> lastSeenTracker.flush(TimeUnit.SECONDS.toMillis(entity.getLastSeenResolution())));
+    queryTicker = context.bgp().builder("tasmota-initial-query")
+      .intervalWithDelay(Duration.ofMillis(200))
+      .execute(() -> {
+        queryScheduler.tick(entity.getQueryRate(), entity.getQueryRate() * 2D);
+        catalogStore.expireClaims();
+      });
+    uiUpdateTicker = context.bgp().builder("tasmota-ui-updates")
+      .intervalWithDelay(Duration.ofMillis(50))
+      .execute(() -> uiUpdater.tick(entity.getUiUpdateWindow(), entity.getUiFleetThreshold()));
+    livenessTicker = context.bgp().builder("tasmota-liveness")
+      .intervalWithDelay(Duration.ofSeconds(1))
+      .execute(() -> livenessMonitor.tick(entity.getLivenessGrace()));
+    metricsSampler = context.bgp().builder("tasmota-metrics")
+      .intervalWithDelay(Duration.ofSeconds(5))
+      .execute(() -> {
+        metrics.sample();
+        TasmotaTrafficRecorder recorder = this.recorder;
+        if (recorder != null) {
+          recorder.flush();
         }
-        if (topic.endsWith("LWT")) {
-          lwts.add(topic);
-          log.info("[{}]: DISCOVERY: LWT from an unknown device {}", entityID, topic);
-          for (String pattern : entity.getPatterns()) {
-            Matcher matcher = Pattern.compile(pattern.replace("%topic%", "(?<topic>.*)")
-                                                .replace("%prefix%", "(?<prefix>.*?)") + ".*$").matcher(topic);
-            if (matcher.matches()) {
-              String possible_topic = matcher.group("topic");
-              if (!possible_topic.equals("tele") && !possible_topic.equals("stat")) {
-                String possible_topic_cmnd = (pattern.replace("%prefix%", "cmnd").replace("%topic%", possible_topic) + "FullTopic");
-                log.info("[{}]: DISCOVERY: Asking an unknown device for FullTopic at {}", entityID, possible_topic_cmnd);
-                mqttEntityService.publish(possible_topic_cmnd);
-              }
-            }
-          }
-        } else if (topic.endsWith("RESULT") || topic.endsWith("FULLTOPIC")) {
-          if (!payload.has("FullTopic")) {
-            return;
-          }
-          String full_topic = payload.get("FullTopic").asText();
-          ParsedTopic parsed = parseTopic(full_topic, topic);
-          if (parsed == null) {
-            return;
-          }
-          log.info("[{}]: DISCOVERY: topic {} is matched by fulltopic {}", entityID, topic, full_topic);
-          MatchDeviceData deviceData = findDevice(parsed.topic);
-          if (deviceData != null) {
-            if (!deviceData.entity.getFullTopic().equals(full_topic)) {
-              context.db().save(deviceData.entity.setFullTopic(full_topic));
+      });
+    initialize();
+  }
+
+  /**
+   * Create services of devices loaded from db in background. Creation is queued into device mailbox, so it doesn't race
+   * with device messages. Such services don't push own ui update and toastr, ui is refreshed once after all services
+   * have been created
+   *
+   * @param started - time startup has begun, startup time is reported once all services are restored
+   */
+  private void restoreDevices(List<TasmotaDeviceEntity> devices, long started) {
+    if (devices.isEmpty()) {
+      startupTime = "0 devices in %d ms".formatted(System.currentTimeMillis() - started);
+      return;
+    }
+    devices.forEach(device -> restoringDevices.add(device.getIeeeAddress()));
+    AtomicInteger remaining = new AtomicInteger(devices.size());
+    context.bgp().builder("tasmota-restore-devices").execute(() -> {
+      for (TasmotaDeviceEntity device : devices) {
+        Runnable restore = () -> {
+          try {
+            deviceService(device).endRestore();
+          } catch (Exception ex) {
+            log.error("[{}]: Unable to restore tasmota device {}", entityID, device.getIeeeAddress(), ex);
+          } finally {
+            restoringDevices.remove(device.getIeeeAddress());
+            if (remaining.decrementAndGet() == 0) {
+              long startupDuration = System.currentTimeMillis() - started;
+              startupTime = "%d devices in %d ms".formatted(devices.size(), startupDuration);
+              log.info("[{}]: Restored {} tasmota devices in {}ms", entityID, devices.size(), startupDuration);
+              context.ui().updateItems(TasmotaDeviceEntity.class);
             }
-            deviceData.entity.getService().put("FullTopic", full_topic);
-          } else {
-            log.info("[{}]: DISCOVERY: Discovered topic={} with fulltopic={}", entityID, parsed.topic, full_topic);
-            TasmotaDeviceEntity device = new TasmotaDeviceEntity();
-            device.setIeeeAddress(parsed.topic);
-            device.setFullTopic(full_topic);
-            existedDevices.put(parsed.topic, context.db().save(device));
-            log.info("[{}]: DISCOVERY: Sending initial query to topic {}", entityID, parsed.topic);
-            initialQuery(device);
-            String tele_topic = tele_topic(device, "LWT");
-            lwts.remove(tele_topic);
-            device.getService().put("LWT", "Online");
           }
+        };
+        // mailbox is full, device is busy anyway
+        if (!dispatcher.dispatch(device.getIeeeAddress(), restore)) {
+          restore.run();
         }
-      });
-    initialize();
+      }
+    });
+  }
+
+  /**
+   * Create service of device, called by entity service registry. Service of device which is being restored from db
+   * doesn't push own ui update and toastr
+   */
+  public @NotNull TasmotaDeviceService createDeviceService(@NotNull TasmotaDeviceEntity device) {
+    return new TasmotaDeviceService(context, device, metrics, restoringDevices.contains(device.getIeeeAddress()));
+  }
+
+  /**
+   * Route message on broker thread and record and process it in device mailbox. Messages of unknown devices are
+   * processed in single discovery mailbox
+   */
+  private void dispatchMessage(String topic, JsonNode payload) {
+    if (topic.endsWith("/LOGGING")) {
+      // device service ignores log lines, don't record, route or dispatch them
+      metrics.recordMessage(TasmotaMetrics.MessageType.LOGGING);
+      return;
+    }
+    TasmotaTrafficRecorder recorder = this.recorder;
+    long receivedNanos = recorder == null ? 0 : System.nanoTime();
+    MatchDeviceData data = routeMessage(topic);
+    String mailbox = data == null ? DISCOVERY_MAILBOX : data.entity.getIeeeAddress();
+    dispatcher.dispatch(mailbox, () -> {
+      if (recorder != null) {
+        recorder.record(topic, payload, receivedNanos);
+      }
+      processMessage(topic, payload, data);
+    });
+  }
+
+  public void onMessage(String topic, JsonNode payload) {
+    processMessage(topic, payload, routeMessage(topic));
+  }
+
+  private @Nullable MatchDeviceData routeMessage(String topic) {
+    long start = System.nanoTime();
+    MatchDeviceData data = router.route(topic);
+    metrics.recordRoute(System.nanoTime() - start);
+    metrics.recordMessage(TasmotaMetrics.MessageType.of(topic));
+    return data;
   }
 
-  private @Nullable MatchDeviceData findDevice(String topic) {
-    for (TasmotaDeviceEntity entity : existedDevices.values()) {
-      MatchDeviceData data = matchDevice(entity, topic);
-      if (data != null) {
-        return data;
+  private void processMessage(String topic, JsonNode payload, @Nullable MatchDeviceData data) {
+    if (data == null && !topic.endsWith("LWT") && !topic.endsWith("RESULT") && !topic.endsWith("FULLTOPIC")) {
+      metrics.recordUnknownTopic();
+      return;
+    }
+    if (data != null) {
+      if (topic.endsWith("LWT")) {
+        // plain text LWT arrives as {"raw": text}, compare raw node as is
+        boolean online = LWT_ONLINE.equals(payload.get("raw"));
+        // Offline LWT is published by broker on behalf of device, it isn't sign of life
+        if (online) {
+          updateLastSeen(data.entity);
+        }
+        handleLwt(data.entity, online ? "Online" : "Offline");
+      } else {
+        updateLastSeen(data.entity);
+        // forward the message for processing
+        deviceService(data.entity).mqttUpdate(payload, data);
       }
     }
-    return null;
+    if (topic.endsWith("LWT")) {
+      discoverByLwt(topic);
+    } else if (topic.endsWith("RESULT") || topic.endsWith("FULLTOPIC")) {
+      discoverByFullTopic(topic, payload);
+    }
   }
 
-  private MatchDeviceData matchDevice(TasmotaDeviceEntity entity, String topic) {
-    if (entity.getIeeeAddress().equals(topic)) {
-      return new MatchDeviceData(entity, "", "");
+  public TasmotaDeviceService deviceService(TasmotaDeviceEntity device) {
+    TasmotaDeviceService service = services.get(device.getIeeeAddress());
+    if (service != null) {
+      return service;
     }
-    ParsedTopic parsedTopic = parseTopic(entity.getFullTopic(), topic);
-    if (parsedTopic != null && parsedTopic.topic.equals(entity.getIeeeAddress())) {
-      return new MatchDeviceData(entity, parsedTopic.reply(), parsedTopic.prefix());
+    Lock lock = serviceLock(device.getIeeeAddress());
+    lock.lock();
+    try {
+      service = services.get(device.getIeeeAddress());
+      if (service == null) {
+        service = deviceServices.apply(device);
+        services.put(device.getIeeeAddress(), service);
+      }
+      return service;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Service has been destroyed, next lookup asks registry again
+   */
+  public void evictDeviceService(@NotNull String ieeeAddress, @NotNull TasmotaDeviceService service) {
+    Lock lock = serviceLock(ieeeAddress);
+    lock.lock();
+    try {
+      services.remove(ieeeAddress, service);
+    } finally {
+      lock.unlock();
     }
-    return null;
+  }
+
+  private Lock serviceLock(String ieeeAddress) {
+    return serviceLocks[Math.floorMod(ieeeAddress.hashCode(), serviceLocks.length)];
+  }
+
+  /**
+   * Device has been removed, its topics are not routed anymore
+   */
+  public void unregisterDevice(TasmotaDeviceEntity device) {
+    router.unregister(device.getIeeeAddress());
+    services.remove(device.getIeeeAddress());
+    lastSeenTracker.unregister(device.getIeeeAddress());
+    livenessMonitor.unregister(device.getIeeeAddress());
+    invalidateDeviceList();
+  }
+
+  private void registerDevice(TasmotaDeviceEntity device) {
+    router.register(device);
+    lastSeenTracker.register(device);
+    livenessMonitor.register(device);
+    invalidateDeviceList();
+  }
+
+  private void updateLastSeen(TasmotaDeviceEntity device) {
+    lastSeenTracker.touch(device.getIeeeAddress());
+    livenessMonitor.touch(device.getIeeeAddress());
+  }
+
+  private void handleLwt(TasmotaDeviceEntity device, String msg) {
+    deviceService(device).put("LWT", msg);
+    if ("Online".equals(msg)) {
+      initialQuery(device, false);
+    }
+  }
+
+  private void discoverByLwt(String topic) {
+    lwts.add(topic);
+    log.info("[{}]: DISCOVERY: LWT from an unknown device {}", entityID, topic);
+    for (TasmotaTopicTemplate pattern : getDiscoveryPatterns()) {
+      ParsedTopic parsed = pattern.parse(topic);
+      if (parsed != null) {
+        String possible_topic = parsed.topic();
+        if (!possible_topic.equals("tele") && !possible_topic.equals("stat")) {
+          String possible_topic_cmnd = pattern.build("cmnd", possible_topic) + "/FullTopic";
+          log.info("[{}]: DISCOVERY: Asking an unknown device for FullTopic at {}", entityID, possible_topic_cmnd);
+          commandSender.send(possible_topic_cmnd, new byte[0], true);
+          metrics.recordDiscovery();
+        }
+      }
+    }
+  }
+
+  private void discoverByFullTopic(String topic, JsonNode payload) {
+    if (!payload.has("FullTopic")) {
+      return;
+    }
+    String full_topic = payload.get("FullTopic").asText();
+    ParsedTopic parsed = parseTopic(full_topic, topic);
+    if (parsed == null) {
+      return;
+    }
+    log.info("[{}]: DISCOVERY: topic {} is matched by fulltopic {}", entityID, topic, full_topic);
+    metrics.recordDiscovery();
+    TasmotaDeviceEntity existedDevice = router.get(parsed.topic);
+    if (existedDevice != null) {
+      if (!existedDevice.getFullTopic().equals(full_topic)) {
+        context.db().save(existedDevice.setFullTopic(full_topic));
+        registerDevice(existedDevice);
+        uiUpdater.request(existedDevice);
+      }
+      deviceService(existedDevice).put("FullTopic", full_topic);
+    } else {
+      log.info("[{}]: DISCOVERY: Discovered topic={} with fulltopic={}", entityID, parsed.topic, full_topic);
+      TasmotaDeviceEntity device = new TasmotaDeviceEntity();
+      device.setIeeeAddress(parsed.topic);
+      device.setFullTopic(full_topic);
+      device = context.db().save(device);
+      registerDevice(device);
+      uiUpdater.request(device);
+      log.info("[{}]: DISCOVERY: Scheduling initial query to topic {}", entityID, parsed.topic);
+      initialQuery(device, false);
+      String tele_topic = tele_topic(device, "LWT");
+      lwts.remove(tele_topic);
+      deviceService(device).put("LWT", "Online");
+    }
+  }
+
+  /**
+   * Compiled discovery patterns. Recompiled only when patterns has been edited
+   */
+  private List<TasmotaTopicTemplate> getDiscoveryPatterns() {
+    String source = entity.getJsonData("tp");
+    if (!Objects.equals(source, discoveryPatternsSource)) {
+      discoveryPatterns = entity.getPatterns().stream().map(TasmotaTopicTemplate::of).toList();
+      discoveryPatternsSource = source;
+    }
+    return discoveryPatterns;
+  }
+
+  private record CachedDeviceList(long version, List<DeviceEntity> devices) {
   }
 
   public record MatchDeviceData(TasmotaDeviceEntity entity, String reply, String prefix) {
@@ -0,0 +1,130 @@
+package org.homio.addon.tasmota;
+
+import lombok.extern.log4j.Log4j2;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Fleet-wide scheduler of device queries, i.e. initial query and catalogs. Requests are deduplicated per device and
+ * query, started at jittered time and throttled by global token bucket measured in published mqtt messages. Requests
+ * which user waits for (refresh action of device) are sent first without delay, then devices which have never been
+ * queried
+ */
+@Log4j2
+public class TasmotaQueryScheduler {
+
+  // user has asked for device data, homio doesn't tell which device items are open in ui
+  public static final int PRIORITY_URGENT = 0;
+  public static final int PRIORITY_NEW = 1;
+  public static final int PRIORITY_NORMAL = 2;
+
+  private final Map<RequestKey, Request> pending = new ConcurrentHashMap<>();
+  // requests which jitter delay hasn't passed yet, so future request doesn't block ready ones of lower priority
+  private final PriorityBlockingQueue<Request> delayed = new PriorityBlockingQueue<>(64,
+    Comparator.comparingLong(Request::notBefore));
+  private final PriorityBlockingQueue<Request> ready = new PriorityBlockingQueue<>(64,
+    Comparator.comparingInt(Request::priority).thenComparingLong(Request::notBefore));
+  // sends query commands and returns number of published messages
+  private final ToIntBiFunction<TasmotaDeviceEntity, Map<String, String>> sender;
+  private final AtomicLong scheduledCount = new AtomicLong();
+  private final AtomicLong completedCount = new AtomicLong();
+
+  private double tokens;
+  private long lastRefill = System.currentTimeMillis();
+
+  public TasmotaQueryScheduler(@NotNull ToIntBiFunction<TasmotaDeviceEntity, Map<String, String>> sender) {
+    this.sender = sender;
+  }
+
+  /**
+   * Schedule query. Repeated requests of same query for already queued device are ignored unless they raise priority
+   *
+   * @param commands - query commands, identify query
+   * @param jitter - max random delay in ms before query may be sent. Urgent requests are not delayed, new devices are
+   *               delayed at most by quarter of jitter
+   */
+  public void schedule(@NotNull TasmotaDeviceEntity device, @NotNull Map<String, String> commands, int priority,
+                       long jitter) {
+    pending.compute(new RequestKey(device.getIeeeAddress(), commands), (key, existed) -> {
+      if (existed != null) {
+        if (existed.priority() <= priority) {
+          return existed;
+        }
+        if (!delayed.remove(existed)) {
+          ready.remove(existed);
+        }
+      } else {
+        scheduledCount.incrementAndGet();
+      }
+      long delay = switch (priority) {
+        case PRIORITY_URGENT -> 0;
+        case PRIORITY_NEW -> jitter / 4;
+        default -> jitter;
+      };
+      long notBefore = System.currentTimeMillis() + (delay > 0 ? ThreadLocalRandom.current().nextLong(delay) : 0);
+      Request request = new Request(key, device, priority, notBefore);
+      delayed.add(request);
+      return request;
+    });
+  }
+
+  /**
+   * Send all ready queries which fit into token bucket
+   *
+   * @param rate  - allowed mqtt messages per second
+   * @param burst - max accumulated tokens
+   */
+  public synchronized void tick(double rate, double burst) {
+    long now = System.currentTimeMillis();
+    tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1000D);
+    lastRefill = now;
+    for (Request request = delayed.peek(); request != null && request.notBefore() <= now; request = delayed.peek()) {
+      ready.add(delayed.poll());
+    }
+    while (tokens >= 1) {
+      Request request = ready.poll();
+      if (request == null) {
+        break;
+      }
+      if (!pending.remove(request.key(), request)) {
+        continue; // replaced by request of higher priority while it was moved between queues
+      }
+      try {
+        tokens -= sender.applyAsInt(request.device(), request.key().commands());
+      } catch (Exception ex) {
+        tokens--;
+        log.warn("Unable to send query to device: {}", request.device().getIeeeAddress(), ex);
+      }
+      completedCount.incrementAndGet();
+    }
+  }
+
+  public int getQueueDepth() {
+    return delayed.size() + ready.size();
+  }
+
+  public long getCompletedCount() {
+    return completedCount.get();
+  }
+
+  public long getScheduledCount() {
+    return scheduledCount.get();
+  }
+
+  public @NotNull String getProgress() {
+    return "%d/%d (queue: %d)".formatted(completedCount.get(), scheduledCount.get(), getQueueDepth());
+  }
+
+  private record RequestKey(String ieeeAddress, Map<String, String> commands) {
+  }
+
+  private record Request(RequestKey key, TasmotaDeviceEntity device, int priority, long notBefore) {
+  }
+}
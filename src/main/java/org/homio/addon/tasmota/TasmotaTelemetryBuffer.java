@@ -0,0 +1,167 @@
+package org.homio.addon.tasmota;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed size in-memory history of numeric endpoint. Samples are stored in primitive ring buffers: raw values and
+ * min/max/avg aggregates for 1 minute and 15 minutes buckets. Adding sample doesn't allocate
+ */
+public final class TasmotaTelemetryBuffer {
+
+  private final Ring raw;
+  private final Ring minute;
+  private final Ring quarter;
+
+  public TasmotaTelemetryBuffer(int rawCapacity, int minuteCapacity, int quarterCapacity) {
+    this.raw = new Ring(Tier.RAW, rawCapacity);
+    this.minute = new Ring(Tier.MINUTE, minuteCapacity);
+    this.quarter = new Ring(Tier.QUARTER, quarterCapacity);
+  }
+
+  /**
+   * Approximate memory in bytes used by buffer with such capacities
+   */
+  public static long estimateSize(int rawCapacity, int minuteCapacity, int quarterCapacity) {
+    return rawCapacity * 16L + (minuteCapacity + quarterCapacity) * 32L;
+  }
+
+  public synchronized void add(long timestamp, double value) {
+    raw.add(timestamp, value);
+    minute.add(timestamp, value);
+    quarter.add(timestamp, value);
+  }
+
+  /**
+   * Query samples in [from, to] range. For aggregated tiers current not completed bucket is returned as last sample
+   */
+  public synchronized @NotNull Series query(@NotNull Tier tier, long from, long to) {
+    return switch (tier) {
+      case RAW -> raw.query(from, to);
+      case MINUTE -> minute.query(from, to);
+      case QUARTER -> quarter.query(from, to);
+    };
+  }
+
+  @Getter
+  @RequiredArgsConstructor
+  public enum Tier {
+    RAW(0),
+    MINUTE(TimeUnit.MINUTES.toMillis(1)),
+    QUARTER(TimeUnit.MINUTES.toMillis(15));
+
+    private final long bucketSize;
+  }
+
+  /**
+   * Samples ordered by timestamp. For raw tier min, max and avg are same array
+   */
+  public record Series(long[] timestamps, double[] min, double[] max, double[] avg) {
+
+    public int size() {
+      return timestamps.length;
+    }
+  }
+
+  private static final class Ring {
+
+    private final long bucketSize;
+    private final long[] timestamps;
+    private final double[] min;
+    private final double[] max;
+    private final double[] avg;
+    private int head;
+    private int size;
+
+    // not completed bucket
+    private long bucketStart = -1;
+    private double bucketMin;
+    private double bucketMax;
+    private double bucketSum;
+    private int bucketCount;
+
+    private Ring(Tier tier, int capacity) {
+      this.bucketSize = tier.bucketSize;
+      this.timestamps = new long[capacity];
+      this.avg = new double[capacity];
+      this.min = bucketSize == 0 ? avg : new double[capacity];
+      this.max = bucketSize == 0 ? avg : new double[capacity];
+    }
+
+    private void add(long timestamp, double value) {
+      if (timestamps.length == 0) {
+        return;
+      }
+      if (bucketSize == 0) {
+        push(timestamp, value, value, value);
+        return;
+      }
+      long bucket = timestamp - timestamp % bucketSize;
+      if (bucket != bucketStart) {
+        if (bucketCount > 0) {
+          push(bucketStart, bucketMin, bucketMax, bucketSum / bucketCount);
+        }
+        bucketStart = bucket;
+        bucketMin = value;
+        bucketMax = value;
+        bucketSum = 0;
+        bucketCount = 0;
+      }
+      bucketMin = Math.min(bucketMin, value);
+      bucketMax = Math.max(bucketMax, value);
+      bucketSum += value;
+      bucketCount++;
+    }
+
+    private void push(long timestamp, double minValue, double maxValue, double avgValue) {
+      timestamps[head] = timestamp;
+      min[head] = minValue;
+      max[head] = maxValue;
+      avg[head] = avgValue;
+      head = (head + 1) % timestamps.length;
+      if (size < timestamps.length) {
+        size++;
+      }
+    }
+
+    private Series query(long from, long to) {
+      int capacity = timestamps.length;
+      int start = (head - size + capacity) % Math.max(capacity, 1);
+      int count = 0;
+      for (int i = 0; i < size; i++) {
+        long ts = timestamps[(start + i) % capacity];
+        if (ts >= from && ts <= to) {
+          count++;
+        }
+      }
+      boolean withCurrent = bucketCount > 0 && bucketStart >= from && bucketStart <= to;
+      int total = count + (withCurrent ? 1 : 0);
+      long[] resultTimestamps = new long[total];
+      double[] resultAvg = new double[total];
+      double[] resultMin = bucketSize == 0 ? resultAvg : new double[total];
+      double[] resultMax = bucketSize == 0 ? resultAvg : new double[total];
+      int index = 0;
+      for (int i = 0; i < size; i++) {
+        int pos = (start + i) % capacity;
+        long ts = timestamps[pos];
+        if (ts >= from && ts <= to) {
+          resultTimestamps[index] = ts;
+          resultMin[index] = min[pos];
+          resultMax[index] = max[pos];
+          resultAvg[index] = avg[pos];
+          index++;
+        }
+      }
+      if (withCurrent) {
+        resultTimestamps[index] = bucketStart;
+        resultMin[index] = bucketMin;
+        resultMax[index] = bucketMax;
+        resultAvg[index] = bucketSum / bucketCount;
+      }
+      return new Series(resultTimestamps, resultMin, resultMax, resultAvg);
+    }
+  }
+}
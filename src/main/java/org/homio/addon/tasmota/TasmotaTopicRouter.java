@@ -0,0 +1,81 @@
+package org.homio.addon.tasmota;
+
+import org.homio.addon.tasmota.TasmotaProjectService.MatchDeviceData;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent topic -> device index. Devices are bucketed by compiled FullTopic template and then by their %topic% segment,
+ * so resolving a topic costs one template match per distinct FullTopic instead of one per device.
+ */
+public class TasmotaTopicRouter {
+
+  private final Map<String, TasmotaDeviceEntity> devices = new ConcurrentHashMap<>();
+  private final Map<String, String> deviceTemplates = new ConcurrentHashMap<>();
+  private final Map<String, TemplateBucket> templates = new ConcurrentHashMap<>();
+
+  public @NotNull Map<String, TasmotaDeviceEntity> getDevices() {
+    return Collections.unmodifiableMap(devices);
+  }
+
+  public @Nullable TasmotaDeviceEntity get(@NotNull String topic) {
+    return devices.get(topic);
+  }
+
+  /**
+   * Add device or re-index it after FullTopic has been changed
+   */
+  public synchronized void register(@NotNull TasmotaDeviceEntity entity) {
+    String topic = entity.getIeeeAddress();
+    String fullTopic = entity.getFullTopic();
+    String oldFullTopic = deviceTemplates.put(topic, fullTopic);
+    if (oldFullTopic != null && !oldFullTopic.equals(fullTopic)) {
+      removeFromTemplate(oldFullTopic, topic);
+    }
+    templates.computeIfAbsent(fullTopic, key -> new TemplateBucket(TasmotaTopicTemplate.of(key), new ConcurrentHashMap<>()))
+      .devices.put(topic, entity);
+    devices.put(topic, entity);
+  }
+
+  public synchronized void unregister(@NotNull String topic) {
+    devices.remove(topic);
+    String fullTopic = deviceTemplates.remove(topic);
+    if (fullTopic != null) {
+      removeFromTemplate(fullTopic, topic);
+    }
+  }
+
+  public @Nullable MatchDeviceData route(@NotNull String topic) {
+    TasmotaDeviceEntity entity = devices.get(topic);
+    if (entity != null) {
+      return new MatchDeviceData(entity, "", "");
+    }
+    // route() runs on broker thread but also on callers of onMessage (replay, soak harness), so bounds are per call
+    int[] bounds = new int[4];
+    for (TemplateBucket bucket : templates.values()) {
+      int replyStart = bucket.template.match(topic, bounds);
+      if (replyStart >= 0 && bounds[2] >= 0) {
+        entity = bucket.devices.get(topic.substring(bounds[2], bounds[3]));
+        if (entity != null) {
+          String prefix = bounds[0] < 0 ? "" : topic.substring(bounds[0], bounds[1]);
+          return new MatchDeviceData(entity, topic.substring(replyStart), prefix);
+        }
+      }
+    }
+    return null;
+  }
+
+  private void removeFromTemplate(String fullTopic, String topic) {
+    templates.computeIfPresent(fullTopic, (key, bucket) -> {
+      bucket.devices.remove(topic);
+      return bucket.devices.isEmpty() ? null : bucket;
+    });
+  }
+
+  private record TemplateBucket(TasmotaTopicTemplate template, Map<String, TasmotaDeviceEntity> devices) {
+  }
+}
@@ -0,0 +1,149 @@
+package org.homio.addon.tasmota;
+
+import org.homio.addon.tasmota.TasmotaProjectService.ParsedTopic;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FullTopic template (i.e. '%prefix%/%topic%/') parsed once into literal segments and placeholders. Matching walks the
+ * topic with plain string comparisons and doesn't allocate; placeholders match lazily up to the next literal segment.
+ */
+public final class TasmotaTopicTemplate {
+
+  public static final int PREFIX = 0;
+  public static final int TOPIC = 1;
+
+  private static final int MAX_CACHE_SIZE = 256;
+  // least recently used templates are evicted one by one, so templates of known devices stay compiled. Guarded by itself
+  private static final Map<String, TasmotaTopicTemplate> CACHE = new LinkedHashMap<>(16, 0.75F, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, TasmotaTopicTemplate> eldest) {
+      return size() > MAX_CACHE_SIZE;
+    }
+  };
+
+  private final String template;
+  // literals[i] precedes placeholders[i], last literal follows the last placeholder
+  private final String[] literals;
+  private final int[] placeholders;
+
+  private TasmotaTopicTemplate(String template) {
+    this.template = template;
+    List<String> literalList = new ArrayList<>();
+    List<Integer> placeholderList = new ArrayList<>();
+    int pos = 0;
+    while (true) {
+      int prefixIndex = template.indexOf("%prefix%", pos);
+      int topicIndex = template.indexOf("%topic%", pos);
+      int index = prefixIndex < 0 ? topicIndex : topicIndex < 0 ? prefixIndex : Math.min(prefixIndex, topicIndex);
+      if (index < 0) {
+        literalList.add(template.substring(pos));
+        break;
+      }
+      literalList.add(template.substring(pos, index));
+      if (index == prefixIndex) {
+        placeholderList.add(PREFIX);
+        pos = index + "%prefix%".length();
+      } else {
+        placeholderList.add(TOPIC);
+        pos = index + "%topic%".length();
+      }
+    }
+    this.literals = literalList.toArray(new String[0]);
+    this.placeholders = placeholderList.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  public static @NotNull TasmotaTopicTemplate of(@NotNull String template) {
+    synchronized (CACHE) {
+      return CACHE.computeIfAbsent(template, TasmotaTopicTemplate::new);
+    }
+  }
+
+  public @NotNull String getTemplate() {
+    return template;
+  }
+
+  /**
+   * Match topic against template
+   *
+   * @param topic  - mqtt topic
+   * @param bounds - array of 4 ints, filled with [prefixStart, prefixEnd, topicStart, topicEnd] or -1 if template has no
+   *               such placeholder
+   * @return index where reply part of the topic starts, or -1 if topic doesn't match
+   */
+  public int match(@NotNull String topic, int[] bounds) {
+    bounds[0] = bounds[1] = bounds[2] = bounds[3] = -1;
+    int pos = 0;
+    int length = topic.length();
+    for (int i = 0; i < placeholders.length; i++) {
+      String literal = literals[i];
+      if (!topic.startsWith(literal, pos)) {
+        return -1;
+      }
+      pos += literal.length();
+      String next = literals[i + 1];
+      int end;
+      if (!next.isEmpty()) {
+        end = topic.indexOf(next, pos);
+      } else if (i + 1 < placeholders.length) {
+        // two placeholders without separator - nothing to match lazily against
+        return -1;
+      } else {
+        end = topic.indexOf('/', pos);
+        end = end < 0 ? length : end;
+      }
+      if (end <= pos) {
+        return -1;
+      }
+      bounds[placeholders[i] * 2] = pos;
+      bounds[placeholders[i] * 2 + 1] = end;
+      pos = end;
+    }
+    String last = literals[placeholders.length];
+    if (!topic.startsWith(last, pos)) {
+      return -1;
+    }
+    pos += last.length();
+    if (last.isEmpty() && pos < length && topic.charAt(pos) == '/') {
+      pos++;
+    }
+    return pos;
+  }
+
+  public @Nullable ParsedTopic parse(@NotNull String topic) {
+    int[] bounds = new int[4];
+    int replyStart = match(topic, bounds);
+    if (replyStart < 0 || bounds[2] < 0) {
+      return null;
+    }
+    String prefix = bounds[0] < 0 ? "" : topic.substring(bounds[0], bounds[1]);
+    return new ParsedTopic(prefix, topic.substring(bounds[2], bounds[3]), topic.substring(replyStart));
+  }
+
+  /**
+   * Build topic from template without trailing slashes
+   */
+  public @NotNull String build(@NotNull String prefix, @NotNull String topic) {
+    StringBuilder builder = new StringBuilder(template.length() + topic.length());
+    for (int i = 0; i < placeholders.length; i++) {
+      builder.append(literals[i]).append(placeholders[i] == PREFIX ? prefix : topic);
+    }
+    builder.append(literals[placeholders.length]);
+    int length = builder.length();
+    while (length > 0 && builder.charAt(length - 1) == '/') {
+      length--;
+    }
+    builder.setLength(length);
+    return builder.toString();
+  }
+
+  @Override
+  public String toString() {
+    return template;
+  }
+}
@@ -0,0 +1,196 @@
+package org.homio.addon.tasmota;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.extern.log4j.Log4j2;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.homio.api.util.JsonUtils.OBJECT_MAPPER;
+
+/**
+ * Binary capture of mqtt traffic seen by payload listener, to replay real traffic against other build.
+ * <p>
+ * Format: header [magic: int, version: short, start epoch ms: long, devices count: int, (ieee: utf, fullTopic: utf)*]
+ * followed by records [nanos since start: long, topic: utf, payload length: int, payload bytes]. Payloads which were not
+ * json are stored as original text
+ */
+@Log4j2
+public class TasmotaTrafficRecorder implements Closeable {
+
+  private static final int MAGIC = 0x544D5243; // TMRC
+  private static final short VERSION = 1;
+
+  private final Path file;
+  private final long maxSize;
+  private final long startNanos = System.nanoTime();
+  private final DataOutputStream output;
+  private volatile boolean closed;
+
+  /**
+   * @param devices - known devices, replayer registers them before feeding records
+   * @param maxSize - recording stops when file exceeds max size in bytes
+   */
+  public TasmotaTrafficRecorder(@NotNull Path file, long maxSize, @NotNull Collection<TasmotaDeviceEntity> devices) throws IOException {
+    this.file = file;
+    this.maxSize = maxSize;
+    Files.createDirectories(file.getParent());
+    output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+    output.writeInt(MAGIC);
+    output.writeShort(VERSION);
+    output.writeLong(System.currentTimeMillis());
+    output.writeInt(devices.size());
+    for (TasmotaDeviceEntity device : devices) {
+      output.writeUTF(device.getIeeeAddress());
+      output.writeUTF(device.getFullTopic());
+    }
+  }
+
+  public @NotNull Path getFile() {
+    return file;
+  }
+
+  /**
+   * @return true if recording has been stopped, also when file has reached max size
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Record message. Payload is serialized outside of recorder lock, so devices mailboxes don't wait for each other
+   *
+   * @param receivedNanos - System.nanoTime() when message has been received from broker
+   */
+  public void record(@NotNull String topic, @NotNull JsonNode payload, long receivedNanos) {
+    if (closed) {
+      return;
+    }
+    byte[] bytes;
+    try {
+      JsonNode raw = payload.get("raw");
+      bytes = raw != null && payload.size() == 1
+        ? raw.asText().getBytes(StandardCharsets.UTF_8)
+        : OBJECT_MAPPER.writeValueAsBytes(payload);
+    } catch (IOException ex) {
+      log.warn("Unable to serialize tasmota message of {} for recording", topic, ex);
+      return;
+    }
+    write(topic, bytes, receivedNanos);
+  }
+
+  private synchronized void write(String topic, byte[] bytes, long receivedNanos) {
+    if (closed) {
+      return;
+    }
+    try {
+      output.writeLong(receivedNanos - startNanos);
+      output.writeUTF(topic);
+      output.writeInt(bytes.length);
+      output.write(bytes);
+      if (output.size() >= maxSize) {
+        log.warn("Tasmota traffic recording {} reached max size. Stop recording", file);
+        close();
+      }
+    } catch (IOException ex) {
+      log.error("Unable to write tasmota traffic recording {}", file, ex);
+      close();
+    }
+  }
+
+  public synchronized void flush() {
+    if (!closed) {
+      try {
+        output.flush();
+      } catch (IOException ex) {
+        log.error("Unable to flush tasmota traffic recording {}", file, ex);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (!closed) {
+      closed = true;
+      try {
+        output.close();
+      } catch (IOException ex) {
+        log.error("Unable to close tasmota traffic recording {}", file, ex);
+      }
+    }
+  }
+
+  public static @NotNull Header readHeader(@NotNull Path file) throws IOException {
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      return readHeader(file, input);
+    }
+  }
+
+  /**
+   * Read recording header and pass every record to visitor in recorded order
+   */
+  public static @NotNull Header read(@NotNull Path file, @NotNull RecordVisitor visitor) throws IOException {
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+      Header header = readHeader(file, input);
+      while (true) {
+        long offset;
+        String topic;
+        byte[] payload;
+        try {
+          offset = input.readLong();
+          topic = input.readUTF();
+          payload = new byte[input.readInt()];
+          input.readFully(payload);
+        } catch (EOFException ignore) {
+          // end of file or last record was not fully written
+          break;
+        }
+        visitor.record(offset, topic, payload);
+      }
+      return header;
+    }
+  }
+
+  private static Header readHeader(Path file, DataInputStream input) throws IOException {
+    if (input.readInt() != MAGIC) {
+      throw new IOException("Not a tasmota traffic recording: " + file);
+    }
+    short version = input.readShort();
+    if (version != VERSION) {
+      throw new IOException("Unsupported tasmota traffic recording version: " + version);
+    }
+    long startTime = input.readLong();
+    int count = input.readInt();
+    List<RecordedDevice> devices = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      devices.add(new RecordedDevice(input.readUTF(), input.readUTF()));
+    }
+    return new Header(startTime, devices);
+  }
+
+  public record Header(long startTime, List<RecordedDevice> devices) {
+  }
+
+  public record RecordedDevice(String ieeeAddress, String fullTopic) {
+  }
+
+  public interface RecordVisitor {
+
+    /**
+     * @param offsetNanos - nanos since recording start
+     */
+    void record(long offsetNanos, @NotNull String topic, byte[] payload);
+  }
+}
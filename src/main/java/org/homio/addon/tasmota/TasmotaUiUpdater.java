@@ -0,0 +1,97 @@
+package org.homio.addon.tasmota;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces ui pushes of devices. Requests within window are merged into one push per device, or into one fleet-wide
+ * push if many devices have changed together. Interactive actions flush device immediately
+ */
+public class TasmotaUiUpdater {
+
+  // device changes caused by user action are pushed without coalescing for a while
+  private static final long INTERACTIVE_PERIOD = TimeUnit.SECONDS.toMillis(10);
+
+  private final Map<String, TasmotaDeviceEntity> pending = new ConcurrentHashMap<>();
+  private final Map<String, Long> interactiveUntil = new ConcurrentHashMap<>();
+  private final AtomicLong firstPendingAt = new AtomicLong();
+  private final LongAdder requested = new LongAdder();
+  private final LongAdder pushed = new LongAdder();
+  private final Consumer<TasmotaDeviceEntity> itemPush;
+  private final Runnable fleetPush;
+
+  public TasmotaUiUpdater(@NotNull Consumer<TasmotaDeviceEntity> itemPush, @NotNull Runnable fleetPush) {
+    this.itemPush = itemPush;
+    this.fleetPush = fleetPush;
+  }
+
+  public void request(@NotNull TasmotaDeviceEntity device) {
+    requested.increment();
+    Long until = interactiveUntil.get(device.getIeeeAddress());
+    if (until != null) {
+      if (System.currentTimeMillis() < until) {
+        flush(device);
+        return;
+      }
+      interactiveUntil.remove(device.getIeeeAddress());
+    }
+    pending.put(device.getIeeeAddress(), device);
+    firstPendingAt.compareAndSet(0, System.currentTimeMillis());
+  }
+
+  /**
+   * Push device now and push its changes immediately during interactive period, i.e. after user action
+   */
+  public void interactive(@NotNull TasmotaDeviceEntity device) {
+    interactiveUntil.put(device.getIeeeAddress(), System.currentTimeMillis() + INTERACTIVE_PERIOD);
+    flush(device);
+  }
+
+  public void flush(@NotNull TasmotaDeviceEntity device) {
+    pending.remove(device.getIeeeAddress());
+    pushed.increment();
+    itemPush.accept(device);
+  }
+
+  /**
+   * Push pending devices if oldest request is older than window
+   *
+   * @param window         - coalescing window in ms
+   * @param fleetThreshold - number of pending devices from which single fleet-wide push is made
+   */
+  public void tick(long window, int fleetThreshold) {
+    long first = firstPendingAt.get();
+    if (first == 0 || System.currentTimeMillis() - first < window) {
+      return;
+    }
+    firstPendingAt.set(0);
+    if (pending.size() >= fleetThreshold) {
+      pending.clear();
+      pushed.increment();
+      fleetPush.run();
+      return;
+    }
+    Iterator<TasmotaDeviceEntity> iterator = pending.values().iterator();
+    while (iterator.hasNext()) {
+      TasmotaDeviceEntity device = iterator.next();
+      iterator.remove();
+      pushed.increment();
+      itemPush.accept(device);
+    }
+  }
+
+  public long getRequestedCount() {
+    return requested.sum();
+  }
+
+  public long getPushedCount() {
+    return pushed.sum();
+  }
+}
@@ -0,0 +1,109 @@
+package org.homio.addon.tasmota;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.homio.addon.tasmota.TasmotaProjectService.MatchDeviceData;
+import org.homio.api.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Device services payload handling: handlePayload/updateMqtt of state and sensor trees and endpoint updates.
+ * Payload values rotate, so part of endpoint updates pass change detection
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceUpdateBenchmark {
+
+  private static final int VARIANTS = 16;
+
+  @Param({"10", "1000", "10000"})
+  private int fleetSize;
+
+  private TasmotaDeviceService[] services;
+  private MatchDeviceData[] stateData;
+  private MatchDeviceData[] sensorData;
+  private JsonNode[] statePayloads;
+  private JsonNode[] sensorPayloads;
+  private TasmotaEndpoint endpoint;
+  private int next;
+  private int variant;
+
+  @Setup
+  public void setup() {
+    Context context = PerfStubs.context();
+    TasmotaProjectService projectService = new TasmotaProjectService(context, new TasmotaProjectEntity());
+    TasmotaFleet fleet = new TasmotaFleet(fleetSize);
+    List<TasmotaDeviceEntity> devices = fleet.getDevices();
+    services = new TasmotaDeviceService[devices.size()];
+    stateData = new MatchDeviceData[devices.size()];
+    sensorData = new MatchDeviceData[devices.size()];
+    for (int i = 0; i < devices.size(); i++) {
+      TasmotaDeviceEntity device = devices.get(i);
+      services[i] = projectService.createDeviceService(device);
+      services[i].firstInitialize();
+      stateData[i] = new MatchDeviceData(device, "STATE", "tele");
+      sensorData[i] = new MatchDeviceData(device, "SENSOR", "tele");
+      MatchDeviceData statusData = new MatchDeviceData(device, "STATUS0", "stat");
+      services[i].mqttUpdate(TasmotaFleet.readTree(TasmotaFleet.status0(device.getIeeeAddress())), statusData);
+    }
+    statePayloads = new JsonNode[VARIANTS];
+    sensorPayloads = new JsonNode[VARIANTS];
+    for (int i = 0; i < VARIANTS; i++) {
+      statePayloads[i] = TasmotaFleet.readTree(TasmotaFleet.state(i));
+      sensorPayloads[i] = TasmotaFleet.readTree(TasmotaFleet.sensor(i));
+    }
+    // warm up endpoints discovery, so benchmarks measure steady state
+    for (int i = 0; i < devices.size(); i++) {
+      services[i].mqttUpdate(statePayloads[0], stateData[i]);
+      services[i].mqttUpdate(sensorPayloads[0], sensorData[i]);
+    }
+    endpoint = services[0].getEndpoints().values().stream()
+      .filter(item -> item.getTelemetryBuffer() != null)
+      .findFirst()
+      .orElseGet(() -> services[0].getEndpoints().values().iterator().next());
+  }
+
+  @Benchmark
+  public void updateState() {
+    int index = nextIndex();
+    services[index].mqttUpdate(statePayloads[nextVariant()], stateData[index]);
+  }
+
+  @Benchmark
+  public void updateSensor() {
+    int index = nextIndex();
+    services[index].mqttUpdate(sensorPayloads[nextVariant()], sensorData[index]);
+  }
+
+  @Benchmark
+  public void updateEndpoint() {
+    endpoint.mqttUpdate(statePayloads[nextVariant()]);
+  }
+
+  private int nextIndex() {
+    int index = next;
+    next = index + 1 == fleetSize ? 0 : index + 1;
+    return index;
+  }
+
+  private int nextVariant() {
+    variant = (variant + 1) % VARIANTS;
+    return variant;
+  }
+}
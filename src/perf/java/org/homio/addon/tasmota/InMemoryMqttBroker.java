@@ -0,0 +1,175 @@
+package org.homio.addon.tasmota;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.homio.api.ContextService.MQTTEntityService;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * In-memory stand-in of MQTT broker and MQTTEntityService. Messages published by devices are delivered to payload
+ * listeners on single broker thread, same as real mqtt client callback. Commands published by addon are handed to
+ * command handler (simulated devices)
+ */
+public class InMemoryMqttBroker {
+
+  private final ExecutorService deliveryThread = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "mqtt-broker");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final LongAdder delivered = new LongAdder();
+  private final LongAdder commands = new LongAdder();
+  private final MQTTEntityService service;
+  private volatile BiConsumer<String, byte[]> commandHandler = (topic, payload) -> {
+  };
+  private volatile @Nullable DeliveryListener deliveryListener;
+
+  public InMemoryMqttBroker() {
+    service = PerfStubs.stub(MQTTEntityService.class, (type, method, args) -> {
+      if (method.getName().equals("addPayloadListener")) {
+        subscribe(args);
+      } else if (method.getName().equals("publish") && args != null && args.length >= 2 && args[0] instanceof String topic) {
+        commands.increment();
+        commandHandler.accept(topic, toBytes(args[1]));
+      }
+      return PerfStubs.DEFAULT;
+    });
+  }
+
+  public @NotNull MQTTEntityService getService() {
+    return service;
+  }
+
+  public void setCommandHandler(@NotNull BiConsumer<String, byte[]> commandHandler) {
+    this.commandHandler = commandHandler;
+  }
+
+  /**
+   * Called on broker thread after message has been handed to all listeners
+   */
+  public void setDeliveryListener(@Nullable DeliveryListener deliveryListener) {
+    this.deliveryListener = deliveryListener;
+  }
+
+  /**
+   * Publish message from device side
+   */
+  public void deliver(@NotNull String topic, byte[] payload) {
+    long publishedAt = System.nanoTime();
+    queued.incrementAndGet();
+    deliveryThread.execute(() -> {
+      queued.decrementAndGet();
+      JsonNode node = TasmotaFleet.readTree(payload);
+      for (Subscription subscription : subscriptions) {
+        if (subscription.matches(topic)) {
+          subscription.accept(topic, node);
+        }
+      }
+      delivered.increment();
+      DeliveryListener listener = deliveryListener;
+      if (listener != null) {
+        listener.delivered(topic, publishedAt);
+      }
+    });
+  }
+
+  public long getDeliveredCount() {
+    return delivered.sum();
+  }
+
+  public long getCommandCount() {
+    return commands.sum();
+  }
+
+  public int getQueueSize() {
+    return queued.get();
+  }
+
+  public void shutdown() {
+    deliveryThread.shutdownNow();
+  }
+
+  /**
+   * MQTT topic filter match with '+' and '#' wildcards
+   */
+  static boolean matches(String filter, String topic) {
+    int f = 0;
+    int t = 0;
+    while (f < filter.length()) {
+      char ch = filter.charAt(f);
+      if (ch == '#') {
+        return true;
+      }
+      if (ch == '+') {
+        while (t < topic.length() && topic.charAt(t) != '/') {
+          t++;
+        }
+        f++;
+        continue;
+      }
+      if (t >= topic.length() || topic.charAt(t) != ch) {
+        return false;
+      }
+      f++;
+      t++;
+    }
+    return t == topic.length();
+  }
+
+  private void subscribe(Object[] args) {
+    Set<?> filters = null;
+    for (Object arg : args) {
+      if (arg instanceof Set<?> set) {
+        filters = set;
+      }
+    }
+    // payload listener is last argument
+    Object listener = args[args.length - 1];
+    if (filters != null && listener != null) {
+      Method method = PerfStubs.functionalMethod(listener);
+      for (Object filter : filters) {
+        subscriptions.add(new Subscription(filter.toString(), listener, method));
+      }
+    }
+  }
+
+  private static byte[] toBytes(Object payload) {
+    if (payload instanceof byte[] bytes) {
+      return bytes;
+    }
+    return payload == null ? new byte[0] : payload.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  public interface DeliveryListener {
+
+    void delivered(@NotNull String topic, long publishedAtNanos);
+  }
+
+  private record Subscription(String filter, Object listener, Method method) {
+
+    private boolean matches(String topic) {
+      return InMemoryMqttBroker.matches(filter, topic);
+    }
+
+    private void accept(String topic, JsonNode payload) {
+      try {
+        method.invoke(listener, topic, payload);
+      } catch (Exception ignore) {
+        // listener errors are logged by addon
+      }
+    }
+  }
+}
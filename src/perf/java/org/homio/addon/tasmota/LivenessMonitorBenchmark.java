@@ -0,0 +1,75 @@
+package org.homio.addon.tasmota;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Liveness monitor on simulated clock. fleetSecond is one second of steady fleet with 60s TelePeriod: 1/60 of devices
+ * report and wheel is ticked once, no device goes silent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LivenessMonitorBenchmark {
+
+  private static final int TELE_PERIOD = 60;
+
+  @Param({"1000", "20000"})
+  private int fleetSize;
+
+  private volatile long now;
+  private TasmotaLivenessMonitor monitor;
+  private String[] ieeeAddresses;
+  private long silent;
+  private int next;
+
+  @Setup
+  public void setup() {
+    now = System.currentTimeMillis();
+    monitor = new TasmotaLivenessMonitor(device -> silent++, device -> true, () -> now);
+    List<TasmotaDeviceEntity> devices = new TasmotaFleet(fleetSize).getDevices();
+    ieeeAddresses = new String[devices.size()];
+    for (int i = 0; i < devices.size(); i++) {
+      TasmotaDeviceEntity device = devices.get(i);
+      ieeeAddresses[i] = device.getIeeeAddress();
+      monitor.register(device);
+      monitor.setTelePeriod(device.getIeeeAddress(), TELE_PERIOD);
+    }
+  }
+
+  @Benchmark
+  public void touch() {
+    monitor.touch(ieeeAddresses[nextIndex()]);
+  }
+
+  @Benchmark
+  public long fleetSecond() {
+    now += TimeUnit.SECONDS.toMillis(1);
+    for (int i = Math.max(1, fleetSize / TELE_PERIOD); i > 0; i--) {
+      monitor.touch(ieeeAddresses[nextIndex()]);
+    }
+    monitor.tick(3);
+    return silent;
+  }
+
+  private int nextIndex() {
+    int index = next;
+    next = index + 1 == fleetSize ? 0 : index + 1;
+    return index;
+  }
+}
@@ -0,0 +1,187 @@
+package org.homio.addon.tasmota;
+
+import org.homio.api.Context;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lightweight no-op stubs of homio interfaces. Every interface method returns default value, empty collection or
+ * another stub, so code under benchmark may call context.ui()/var()/bgp() chains without running homio
+ */
+public final class PerfStubs {
+
+  /**
+   * Returned by handler to fall back to default stub behaviour
+   */
+  public static final Object DEFAULT = new Object();
+
+  private PerfStubs() {
+  }
+
+  public static @NotNull Context context() {
+    return stub(Context.class, (type, method, args) -> DEFAULT);
+  }
+
+  /**
+   * Context which runs bgp() tasks on given executor, returns saved entity from db().save() and given entities from
+   * db().findAll()
+   */
+  public static @NotNull Context runningContext(@NotNull ScheduledExecutorService executor, @NotNull List<?> entities) {
+    return stub(Context.class, (type, method, args) -> {
+      if (method.getName().equals("save") && args != null && args.length > 0) {
+        return args[0];
+      }
+      if (method.getName().equals("findAll")) {
+        return entities;
+      }
+      if (method.getName().equals("builder") && type.getSimpleName().equals("ContextBGP")) {
+        return scheduleBuilder(method.getReturnType(), executor);
+      }
+      return DEFAULT;
+    });
+  }
+
+  public static <T> @NotNull T stub(@NotNull Class<T> type) {
+    return stub(type, (t, method, args) -> DEFAULT);
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> @NotNull T stub(@NotNull Class<T> type, @NotNull Handler handler) {
+    return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+      if (method.getDeclaringClass() == Object.class) {
+        return objectMethod(type, proxy, method, args);
+      }
+      Object result = handler.invoke(type, method, args);
+      return result == DEFAULT ? defaultValue(method.getReturnType(), handler) : result;
+    });
+  }
+
+  /**
+   * Fluent bgp builder: remembers interval and schedules execute() argument on executor
+   */
+  private static Object scheduleBuilder(Class<?> type, ScheduledExecutorService executor) {
+    Duration[] interval = new Duration[1];
+    return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+      if (method.getDeclaringClass() == Object.class) {
+        return objectMethod(type, proxy, method, args);
+      }
+      if (method.getName().equals("execute") && args != null && args.length > 0) {
+        Object task = args[0];
+        Future<?>[] future = new Future<?>[1];
+        Object threadContext = stubWithFuture(method.getReturnType(), future);
+        Runnable runnable = () -> {
+          try {
+            invokeFunctional(task, threadContext);
+          } catch (Exception ignore) {
+            // keep scheduling as homio does
+          }
+        };
+        future[0] = interval[0] == null
+          ? executor.submit(runnable)
+          : executor.scheduleWithFixedDelay(runnable, interval[0].toMillis(), interval[0].toMillis(), TimeUnit.MILLISECONDS);
+        return threadContext;
+      }
+      if (args != null) {
+        for (Object arg : args) {
+          if (arg instanceof Duration duration) {
+            interval[0] = duration;
+          }
+        }
+      }
+      return method.getReturnType().isInstance(proxy) ? proxy : defaultValue(method.getReturnType(), (t, m, a) -> DEFAULT);
+    });
+  }
+
+  private static Object stubWithFuture(Class<?> type, Future<?>[] future) {
+    return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+      if (method.getDeclaringClass() == Object.class) {
+        return objectMethod(type, proxy, method, args);
+      }
+      if (method.getName().equals("cancel") && future[0] != null) {
+        future[0].cancel(false);
+      }
+      return defaultValue(method.getReturnType(), (t, m, a) -> DEFAULT);
+    });
+  }
+
+  private static void invokeFunctional(Object task, Object threadContext) throws Exception {
+    Method method = functionalMethod(task);
+    Object[] params = new Object[method.getParameterCount()];
+    for (int i = 0; i < params.length; i++) {
+      params[i] = method.getParameterTypes()[i].isInstance(threadContext) ? threadContext : null;
+    }
+    method.invoke(task, params);
+  }
+
+  /**
+   * @return single abstract method of lambda or other functional object passed to stubbed homio api
+   */
+  public static @NotNull Method functionalMethod(@NotNull Object functional) {
+    for (Class<?> functionalInterface : functional.getClass().getInterfaces()) {
+      for (Method method : functionalInterface.getMethods()) {
+        if (Modifier.isAbstract(method.getModifiers())) {
+          method.setAccessible(true);
+          return method;
+        }
+      }
+    }
+    throw new IllegalArgumentException("Not a functional object: " + functional.getClass());
+  }
+
+  private static Object objectMethod(Class<?> type, Object proxy, Method method, Object[] args) {
+    return switch (method.getName()) {
+      case "hashCode" -> System.identityHashCode(proxy);
+      case "equals" -> proxy == args[0];
+      default -> type.getSimpleName() + "Stub";
+    };
+  }
+
+  private static Object defaultValue(Class<?> type, Handler handler) {
+    if (type == void.class) {
+      return null;
+    }
+    if (type.isPrimitive()) {
+      return Array.get(Array.newInstance(type, 1), 0);
+    }
+    if (type == String.class) {
+      return "";
+    }
+    if (type == Optional.class) {
+      return Optional.empty();
+    }
+    if (type == List.class || type == Collection.class) {
+      return List.of();
+    }
+    if (type == Set.class) {
+      return Set.of();
+    }
+    if (type == Map.class) {
+      return Map.of();
+    }
+    if (type.isInterface()) {
+      return stub(type, handler);
+    }
+    return null;
+  }
+
+  public interface Handler {
+
+    /**
+     * @return value of stubbed method or DEFAULT
+     */
+    Object invoke(Class<?> type, Method method, Object[] args) throws Exception;
+  }
+}
@@ -0,0 +1,115 @@
+package org.homio.addon.tasmota;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.homio.api.util.JsonUtils.OBJECT_MAPPER;
+
+/**
+ * Synthetic fleet of tasmota devices with mixed FullTopic templates and realistic payloads
+ */
+public final class TasmotaFleet {
+
+  public static final List<String> FULL_TOPICS = List.of(
+    "%prefix%/%topic%/",
+    "%topic%/%prefix%/",
+    "tasmota/%prefix%/%topic%/",
+    "home/%topic%/%prefix%/");
+
+  private final List<TasmotaDeviceEntity> devices;
+
+  public TasmotaFleet(int size) {
+    devices = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      TasmotaDeviceEntity device = new TasmotaDeviceEntity();
+      device.setIeeeAddress(ieeeAddress(i));
+      device.setFullTopic(FULL_TOPICS.get(i % FULL_TOPICS.size()));
+      devices.add(device);
+    }
+  }
+
+  /**
+   * Parse payload the way homio payload listener does: not json payloads are wrapped as {"raw": "..."}
+   */
+  public static @NotNull JsonNode readTree(byte[] payload) {
+    if (payload.length > 0 && (payload[0] == '{' || payload[0] == '[')) {
+      try {
+        return OBJECT_MAPPER.readTree(payload);
+      } catch (Exception ignore) {
+        // fallback to raw value
+      }
+    }
+    return OBJECT_MAPPER.createObjectNode().put("raw", new String(payload, StandardCharsets.UTF_8));
+  }
+
+  public static @NotNull String ieeeAddress(int index) {
+    return "tasmota_%06X".formatted(index);
+  }
+
+  public static @NotNull String topic(@NotNull TasmotaDeviceEntity device, @NotNull String prefix, @NotNull String reply) {
+    return TasmotaTopicTemplate.of(device.getFullTopic()).build(prefix, device.getIeeeAddress()) + "/" + reply;
+  }
+
+  public @NotNull List<TasmotaDeviceEntity> getDevices() {
+    return devices;
+  }
+
+  public int size() {
+    return devices.size();
+  }
+
+  /**
+   * @param variant - changes measured values, so consecutive payloads pass endpoint change detection
+   */
+  public static byte[] state(int variant) {
+    return """
+      {"Time":"2024-05-01T12:00:%02d","Uptime":"0T01:02:%02d","UptimeSec":%d,"Heap":25,"SleepMode":"Dynamic",\
+      "Sleep":50,"LoadAvg":%d,"MqttCount":1,"POWER":"%s","Wifi":{"AP":1,"SSId":"home","BSSId":"AA:BB:CC:DD:EE:FF",\
+      "Channel":6,"Mode":"11n","RSSI":%d,"Signal":-62,"LinkCount":1,"Downtime":"0T00:00:03"}}"""
+      .formatted(variant % 60, variant % 60, 3720 + variant, 10 + variant % 20, variant % 2 == 0 ? "ON" : "OFF",
+        60 + variant % 30)
+      .getBytes(StandardCharsets.UTF_8);
+  }
+
+  public static byte[] sensor(int variant) {
+    return String.format(Locale.ROOT, """
+      {"Time":"2024-05-01T12:00:%02d","ANALOG":{"A0":%d},"ENERGY":{"TotalStartTime":"2023-01-01T00:00:00",\
+      "Total":%.3f,"Yesterday":0.512,"Today":0.204,"Power":%d,"ApparentPower":50,"ReactivePower":10,"Factor":0.90,\
+      "Voltage":230,"Current":0.196},"DS18B20":{"Id":"0000054F3E4B","Temperature":%.1f},"TempUnit":"C"}""",
+        variant % 60, 400 + variant * 7 % 200, 12.345 + variant / 1000D, 40 + variant % 15, 20 + variant % 50 / 10D)
+      .getBytes(StandardCharsets.UTF_8);
+  }
+
+  public static byte[] status0(@NotNull String ieeeAddress) {
+    return """
+      {"Status":{"Module":1,"DeviceName":"%1$s","FriendlyName":["%1$s"],"Topic":"%1$s","ButtonTopic":"0",\
+      "Power":1,"PowerOnState":3,"LedState":1,"LedMask":"FFFF","SaveData":1,"SaveState":1,"SwitchTopic":"0",\
+      "SwitchMode":[0,0,0,0,0,0,0,0],"ButtonRetain":0,"SwitchRetain":0,"SensorRetain":0,"PowerRetain":0,\
+      "InfoRetain":0,"StateRetain":0},\
+      "StatusPRM":{"Baudrate":115200,"SerialConfig":"8N1","GroupTopic":"tasmotas","OtaUrl":"http://ota.tasmota.com",\
+      "RestartReason":"Software/System restart","Uptime":"0T01:02:03","StartupUTC":"2024-05-01T10:57:57","Sleep":50,\
+      "CfgHolder":4617,"BootCount":12,"BCResetTime":"2023-01-01T00:00:00","SaveCount":120,"SaveAddress":"F5000"},\
+      "StatusFWR":{"Version":"13.2.0(tasmota)","BuildDateTime":"2023-11-15T10:00:00","Boot":31,"Core":"2_7_4_9",\
+      "SDK":"2.2.2-dev(38a443e)","CpuFrequency":80,"Hardware":"ESP8266EX","CR":"378/699"},\
+      "StatusLOG":{"SerialLog":0,"WebLog":2,"MqttLog":0,"SysLog":0,"LogHost":"","LogPort":514,\
+      "SSId":["home",""],"TelePeriod":300,"Resolution":"558180C0","SetOption":["00008009","2805C80001000600003C5A0A190000000000","00000080","00006000","00004000","00000000"]},\
+      "StatusMEM":{"ProgramSize":629,"Free":372,"Heap":25,"ProgramFlashSize":1024,"FlashSize":4096,"FlashChipId":"16405E","FlashFrequency":40,"FlashMode":"DOUT"},\
+      "StatusNET":{"Hostname":"%1$s","IPAddress":"192.168.1.10","Gateway":"192.168.1.1","Subnetmask":"255.255.255.0",\
+      "DNSServer1":"192.168.1.1","DNSServer2":"0.0.0.0","Mac":"AA:BB:CC:DD:EE:01","Webserver":2,"HTTP_API":1,"WifiConfig":4,"WifiPower":17.0},\
+      "StatusMQT":{"MqttHost":"192.168.1.2","MqttPort":1883,"MqttClientMask":"DVES_%%06X","MqttClient":"DVES_000001",\
+      "MqttUser":"DVES_USER","MqttCount":1,"MAX_PACKET_SIZE":1200,"KEEPALIVE":30,"SOCKET_TIMEOUT":4},\
+      "StatusTIM":{"UTC":"2024-05-01T12:00:00","Local":"2024-05-01T14:00:00","StartDST":"2024-03-31T02:00:00",\
+      "EndDST":"2024-10-27T03:00:00","Timezone":"+02:00","Sunrise":"05:50","Sunset":"20:40"},\
+      "StatusSNS":{"Time":"2024-05-01T14:00:00","ANALOG":{"A0":512},"DS18B20":{"Id":"0000054F3E4B","Temperature":21.4},"TempUnit":"C"},\
+      "StatusSTS":{"Time":"2024-05-01T14:00:00","Uptime":"0T01:02:03","UptimeSec":3723,"Heap":25,"SleepMode":"Dynamic",\
+      "Sleep":50,"LoadAvg":19,"MqttCount":1,"POWER":"ON","Wifi":{"AP":1,"SSId":"home","BSSId":"AA:BB:CC:DD:EE:FF",\
+      "Channel":6,"Mode":"11n","RSSI":76,"Signal":-62,"LinkCount":1,"Downtime":"0T00:00:03"}}}"""
+      .formatted(ieeeAddress)
+      .getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,127 @@
+package org.homio.addon.tasmota;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulated tasmota devices on top of InMemoryMqttBroker. Devices come online with LWT at random moment of first
+ * TelePeriod, answer FullTopic discovery probes and initial query commands (plain or Backlog) and emit STATE/SENSOR
+ * every TelePeriod
+ */
+public class TasmotaFleetSimulator {
+
+  private final InMemoryMqttBroker broker;
+  private final List<SimulatedDevice> devices = new ArrayList<>();
+  // cmnd topic without command -> device
+  private final Map<String, SimulatedDevice> commandTopics = new ConcurrentHashMap<>();
+
+  public TasmotaFleetSimulator(@NotNull InMemoryMqttBroker broker, int size, int telePeriodSeconds) {
+    this.broker = broker;
+    long now = System.currentTimeMillis();
+    long telePeriod = TimeUnit.SECONDS.toMillis(telePeriodSeconds);
+    for (int i = 0; i < size; i++) {
+      String fullTopic = TasmotaFleet.FULL_TOPICS.get(i % TasmotaFleet.FULL_TOPICS.size());
+      SimulatedDevice device = new SimulatedDevice(TasmotaFleet.ieeeAddress(i), TasmotaTopicTemplate.of(fullTopic), telePeriod,
+        now + ThreadLocalRandom.current().nextLong(Math.max(telePeriod, 1)));
+      devices.add(device);
+      commandTopics.put(device.template.build("cmnd", device.topic), device);
+    }
+    broker.setCommandHandler(this::onCommand);
+  }
+
+  public int size() {
+    return devices.size();
+  }
+
+  /**
+   * Emit LWT of devices which should come online and telemetry of devices which TelePeriod has elapsed
+   */
+  public void tick() {
+    long now = System.currentTimeMillis();
+    for (SimulatedDevice device : devices) {
+      if (device.nextTelemetry <= now) {
+        if (!device.online) {
+          device.online = true;
+          publish(device, "tele", "LWT", "Online".getBytes(StandardCharsets.UTF_8));
+        } else {
+          device.variant++;
+          publish(device, "tele", "STATE", TasmotaFleet.state(device.variant));
+          publish(device, "tele", "SENSOR", TasmotaFleet.sensor(device.variant));
+        }
+        device.nextTelemetry = now + device.telePeriod;
+      }
+    }
+  }
+
+  private void onCommand(String topic, byte[] payload) {
+    int slash = topic.lastIndexOf('/');
+    if (slash < 0) {
+      return;
+    }
+    SimulatedDevice device = commandTopics.get(topic.substring(0, slash));
+    if (device == null) {
+      return;
+    }
+    String command = topic.substring(slash + 1);
+    String value = new String(payload, StandardCharsets.UTF_8);
+    if (command.equalsIgnoreCase(TasmotaCommandBatcher.BACKLOG)) {
+      for (String item : value.split(";")) {
+        String trimmed = item.trim();
+        int space = trimmed.indexOf(' ');
+        handleCommand(device, space < 0 ? trimmed : trimmed.substring(0, space), space < 0 ? "" : trimmed.substring(space + 1));
+      }
+    } else {
+      handleCommand(device, command, value);
+    }
+  }
+
+  private void handleCommand(SimulatedDevice device, String command, String value) {
+    switch (command.toLowerCase()) {
+      case "fulltopic" -> result(device, "{\"FullTopic\":\"%s\"}".formatted(device.template.getTemplate()));
+      case "status" -> {
+        if (value.isEmpty() || value.equals("0")) {
+          publish(device, "stat", "STATUS0", TasmotaFleet.status0(device.topic));
+        }
+      }
+      case "teleperiod" -> {
+        if (!value.isEmpty()) {
+          device.telePeriod = TimeUnit.SECONDS.toMillis(Integer.parseInt(value));
+        }
+        result(device, "{\"TelePeriod\":%d}".formatted(TimeUnit.MILLISECONDS.toSeconds(device.telePeriod)));
+      }
+      default -> result(device, "{\"%s\":\"%s\"}".formatted(command, value));
+    }
+  }
+
+  private void result(SimulatedDevice device, String json) {
+    publish(device, "stat", "RESULT", json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void publish(SimulatedDevice device, String prefix, String reply, byte[] payload) {
+    broker.deliver(device.template.build(prefix, device.topic) + "/" + reply, payload);
+  }
+
+  private static final class SimulatedDevice {
+
+    private final String topic;
+    private final TasmotaTopicTemplate template;
+    private volatile long telePeriod;
+    private long nextTelemetry;
+    private boolean online;
+    private int variant;
+
+    private SimulatedDevice(String topic, TasmotaTopicTemplate template, long telePeriod, long nextTelemetry) {
+      this.topic = topic;
+      this.template = template;
+      this.telePeriod = telePeriod;
+      this.nextTelemetry = nextTelemetry;
+    }
+  }
+}
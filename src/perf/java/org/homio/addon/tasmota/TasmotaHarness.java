@@ -0,0 +1,105 @@
+package org.homio.addon.tasmota;
+
+import lombok.Getter;
+import org.homio.addon.tasmota.TasmotaMetrics.Histogram;
+import org.homio.addon.tasmota.TasmotaProjectService.MatchDeviceData;
+import org.homio.api.Context;
+import org.homio.api.ContextService.MQTTEntityService;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.homio.api.entity.HasJsonData.LIST_DELIMITER;
+
+/**
+ * Fresh TasmotaProjectService wired to InMemoryMqttBroker and stub homio context. Samples end-to-end latency: marker
+ * task is queued into device mailbox right after sampled message, mailbox is FIFO so marker runs when message has been
+ * processed
+ */
+@Getter
+public class TasmotaHarness implements AutoCloseable {
+
+  private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(4, runnable -> {
+    Thread thread = new Thread(runnable, "harness-bgp");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final InMemoryMqttBroker broker = new InMemoryMqttBroker();
+  private final Context context;
+  private final TasmotaProjectService service;
+  private final Map<String, TasmotaDeviceService> deviceServices = new ConcurrentHashMap<>();
+  private final AtomicReference<Histogram> latency = new AtomicReference<>(new Histogram());
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * @param devices    - devices which service loads from db on start
+   * @param sampleRate - measure latency of each sampleRate message
+   */
+  public TasmotaHarness(@NotNull List<TasmotaDeviceEntity> devices, int sampleRate) {
+    context = PerfStubs.runningContext(executor, devices);
+    TasmotaProjectEntity entity = new TasmotaProjectEntity() {
+      @Override
+      public @Nullable MQTTEntityService getMqttEntityService() {
+        return broker.getService();
+      }
+    };
+    entity.setPatterns(String.join(LIST_DELIMITER, TasmotaFleet.FULL_TOPICS));
+    service = new TasmotaProjectService(context, entity, this::deviceService);
+
+    broker.setDeliveryListener((topic, publishedAt) -> {
+      if (sequence.incrementAndGet() % sampleRate != 0) {
+        return;
+      }
+      MatchDeviceData data = service.getRouter().route(topic);
+      if (data != null) {
+        service.getDispatcher().dispatch(data.entity().getIeeeAddress(),
+          () -> latency.get().record(System.nanoTime() - publishedAt));
+      }
+    });
+  }
+
+  public void start() {
+    service.firstInitialize();
+  }
+
+  /**
+   * Create and initialize device service once per device, as homio entity service registry does
+   */
+  private TasmotaDeviceService deviceService(TasmotaDeviceEntity device) {
+    return deviceServices.computeIfAbsent(device.getIeeeAddress(), key -> {
+      TasmotaDeviceService deviceService = service.createDeviceService(device);
+      deviceService.firstInitialize();
+      return deviceService;
+    });
+  }
+
+  /**
+   * @return latency histogram since previous call
+   */
+  public @NotNull Histogram takeLatency() {
+    return latency.getAndSet(new Histogram());
+  }
+
+  /**
+   * Wait until broker queue and device mailboxes are drained
+   */
+  public void awaitIdle() throws InterruptedException {
+    while (broker.getQueueSize() > 0 || service.getDispatcher().getPendingCount() > 0) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Override
+  public void close() {
+    service.dispose(null);
+    broker.shutdown();
+    executor.shutdownNow();
+  }
+}
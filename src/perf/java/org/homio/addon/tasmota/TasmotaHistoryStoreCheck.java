@@ -0,0 +1,140 @@
+package org.homio.addon.tasmota;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Checks TasmotaHistoryStore record format, segment roll-over, reopen, range queries, retention and concurrent appends
+ * on temporary directory. Fails with exception on first mismatch
+ */
+public final class TasmotaHistoryStoreCheck {
+
+  private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+  private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+  private TasmotaHistoryStoreCheck() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    Path directory = Files.createTempDirectory("tasmota-history");
+    try {
+      checkSegments(directory.resolve("segments"));
+      checkConcurrentAppend(directory.resolve("concurrent"));
+      System.out.println("TasmotaHistoryStore: OK");
+    } finally {
+      try (Stream<Path> files = Files.walk(directory)) {
+        for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+          Files.deleteIfExists(path);
+        }
+      }
+    }
+  }
+
+  private static void checkSegments(Path directory) throws Exception {
+    long base = System.currentTimeMillis() - 10 * DAY;
+    base -= base % TasmotaHistoryStore.AGGREGATE_BUCKET;
+
+    TasmotaHistoryStore store = new TasmotaHistoryStore(directory, 4);
+    for (int i = 0; i < 9; i++) {
+      store.append("device", "temperature", base + i * MINUTE, i);
+    }
+    // record format: [device idx, endpoint idx, timestamp, value], big endian
+    ByteBuffer first = ByteBuffer.wrap(Files.readAllBytes(directory.resolve("raw-" + base + ".seg")));
+    expect(first.capacity(), 4 * TasmotaHistoryStore.RECORD_SIZE, "segment size");
+    expect(first.getInt(TasmotaHistoryStore.RECORD_SIZE), 0, "device idx");
+    expect(first.getInt(TasmotaHistoryStore.RECORD_SIZE + 4), 0, "endpoint idx");
+    expect(first.getLong(TasmotaHistoryStore.RECORD_SIZE + 8), base + MINUTE, "timestamp");
+    expect(first.getDouble(TasmotaHistoryStore.RECORD_SIZE + 16), 1D, "value");
+    // 9 records of 4 per segment
+    expect(countSegments(directory, "raw-"), 3L, "raw segments after roll-over");
+    expect(query(store, base), List.of(0D, 1D, 2D, 3D, 4D, 5D, 6D, 7D, 8D), "samples after roll-over");
+
+    store.close();
+    store.append("device", "temperature", base + 20 * MINUTE, 20);
+    expect(countSegments(directory, "raw-"), 3L, "raw segments after append to closed store");
+
+    // writing continues in last partially filled segment
+    store = new TasmotaHistoryStore(directory, 4);
+    store.append("device", "temperature", base + 9 * MINUTE, 9);
+    expect(countSegments(directory, "raw-"), 3L, "raw segments after reopen");
+    expect(query(store, base), List.of(0D, 1D, 2D, 3D, 4D, 5D, 6D, 7D, 8D, 9D), "samples after reopen");
+    // range spans sealed and active segments
+    expect(query(store, base + 3 * MINUTE, base + 9 * MINUTE), List.of(3D, 4D, 5D, 6D, 7D, 8D, 9D), "samples of range");
+    expect(query(store, base + 30 * MINUTE, base + DAY), List.of(), "samples after last record");
+
+    // all but active segment are older than raw retention
+    store.maintain(DAY, 30 * DAY);
+    expect(countSegments(directory, "raw-"), 1L, "raw segments after compaction");
+    expect(countSegments(directory, "agg-"), 2L, "aggregated segments after compaction");
+    expect(query(store, base), List.of(1.5D, 5.5D, 8D, 9D), "samples after compaction");
+
+    store.maintain(DAY, DAY);
+    expect(countSegments(directory, "agg-"), 0L, "aggregated segments after retention");
+    expect(query(store, base), List.of(8D, 9D), "samples after retention");
+    store.close();
+  }
+
+  private static void checkConcurrentAppend(Path directory) throws Exception {
+    int threads = 8;
+    int samples = 20_000;
+    long base = System.currentTimeMillis();
+    TasmotaHistoryStore store = new TasmotaHistoryStore(directory, 1000);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        String device = "device-" + t;
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < samples; i++) {
+            store.append(device, "power", base + i, i);
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    for (int t = 0; t < threads; t++) {
+      int count = store.query("device-" + t, "power", base, base + samples, (timestamp, value) -> {
+        if (timestamp - base != (long) value) {
+          throw new IllegalStateException("Torn record: " + timestamp + " -> " + value);
+        }
+      });
+      expect(count, samples, "samples of device-" + t);
+    }
+    store.close();
+  }
+
+  private static List<Double> query(TasmotaHistoryStore store, long base) {
+    return query(store, base, base + DAY);
+  }
+
+  private static List<Double> query(TasmotaHistoryStore store, long from, long to) {
+    List<Double> values = new ArrayList<>();
+    store.query("device", "temperature", from, to, (timestamp, value) -> values.add(value));
+    return values;
+  }
+
+  private static long countSegments(Path directory, String prefix) throws Exception {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(path -> path.getFileName().toString().startsWith(prefix)).count();
+    }
+  }
+
+  private static void expect(Object actual, Object expected, String what) {
+    if (!expected.equals(actual)) {
+      throw new IllegalStateException(what + ": expected " + expected + " but was " + actual);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package org.homio.addon.tasmota;
+
+import org.homio.addon.tasmota.TasmotaMetrics.Histogram;
+import org.homio.addon.tasmota.TasmotaTrafficRecorder.RecordedDevice;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays traffic captured by TasmotaTrafficRecorder into fresh TasmotaProjectService.
+ * <p>
+ * Arguments: recording file, speed - '1' original speed, 'N' N times faster, 'max' as fast as possible (1), latency
+ * sample rate (1 of 10 messages). Devices from recording header are loaded as if they were stored in db
+ */
+public final class TasmotaReplay {
+
+  private TasmotaReplay() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      System.out.println("Usage: TasmotaReplay <recording file> [speed: 1|N|max] [latency sample rate]");
+      return;
+    }
+    Path file = Path.of(args[0]);
+    String speedArg = args.length > 1 ? args[1] : "1";
+    double speed = speedArg.equals("max") ? 0 : Double.parseDouble(speedArg);
+    int sampleRate = TasmotaSoakTest.arg(args, 2, 10);
+
+    List<TasmotaDeviceEntity> devices = new ArrayList<>();
+    for (RecordedDevice recorded : TasmotaTrafficRecorder.readHeader(file).devices()) {
+      TasmotaDeviceEntity device = new TasmotaDeviceEntity();
+      device.setIeeeAddress(recorded.ieeeAddress());
+      device.setFullTopic(recorded.fullTopic());
+      devices.add(device);
+    }
+
+    try (TasmotaHarness harness = new TasmotaHarness(devices, sampleRate)) {
+      harness.start();
+      InMemoryMqttBroker broker = harness.getBroker();
+      long started = System.nanoTime();
+      long[] count = new long[1];
+      TasmotaTrafficRecorder.read(file, (offsetNanos, topic, payload) -> {
+        if (speed > 0) {
+          long due = started + (long) (offsetNanos / speed);
+          long wait = due - System.nanoTime();
+          if (wait > 0) {
+            LockSupport.parkNanos(wait);
+          }
+        }
+        broker.deliver(topic, payload);
+        count[0]++;
+      });
+      harness.awaitIdle();
+      long elapsed = System.nanoTime() - started;
+      Histogram latency = harness.takeLatency();
+      System.out.printf("Replayed %d messages of %d devices in %.1fs (speed %s): %.0f msg/sec%n",
+        count[0], devices.size(), elapsed / 1e9, speedArg, count[0] * 1e9 / elapsed);
+      System.out.printf("Latency: mean %.3fms, p50 %.3fms, p90 %.3fms, p99 %.3fms, p999 %.3fms (%d samples)%n",
+        latency.getMean() / 1e6, latency.getPercentile(0.5) / 1e6, latency.getPercentile(0.9) / 1e6,
+        latency.getPercentile(0.99) / 1e6, latency.getPercentile(0.999) / 1e6, latency.getCount());
+      System.out.printf("Processing: %s, mailbox drops: %d%n",
+        harness.getService().getMetrics().getLatencies(), harness.getService().getDispatcher().getDroppedCount());
+    }
+  }
+}
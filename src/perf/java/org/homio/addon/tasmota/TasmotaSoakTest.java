@@ -0,0 +1,75 @@
+package org.homio.addon.tasmota;
+
+import org.homio.addon.tasmota.TasmotaMetrics.Histogram;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end soak run of TasmotaProjectService against simulated fleet.
+ * <p>
+ * Arguments: fleet size (1000), TelePeriod seconds (60), duration seconds (300), latency sample rate (1 of 10 messages).
+ * Every 10 seconds prints sustained messages/sec, end-to-end latency percentiles (broker publish -> device mailbox
+ * processed) and heap growth
+ */
+public final class TasmotaSoakTest {
+
+  private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+  private TasmotaSoakTest() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int fleetSize = arg(args, 0, 1000);
+    int telePeriod = arg(args, 1, 60);
+    int duration = arg(args, 2, 300);
+    int sampleRate = arg(args, 3, 10);
+
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    System.gc();
+    long heapAtStart = memory.getHeapMemoryUsage().getUsed();
+
+    try (TasmotaHarness harness = new TasmotaHarness(List.of(), sampleRate)) {
+      InMemoryMqttBroker broker = harness.getBroker();
+      TasmotaProjectService service = harness.getService();
+      long started = System.currentTimeMillis();
+      harness.start();
+
+      TasmotaFleetSimulator simulator = new TasmotaFleetSimulator(broker, fleetSize, telePeriod);
+      harness.getExecutor().scheduleWithFixedDelay(simulator::tick, 0, 100, TimeUnit.MILLISECONDS);
+      System.out.printf("Soak: %d devices, TelePeriod %ds, duration %ds%n", fleetSize, telePeriod, duration);
+
+      long lastDelivered = 0;
+      long lastReport = started;
+      while (System.currentTimeMillis() - started < TimeUnit.SECONDS.toMillis(duration)) {
+        Thread.sleep(REPORT_INTERVAL);
+        long now = System.currentTimeMillis();
+        long delivered = broker.getDeliveredCount();
+        Histogram latency = harness.takeLatency();
+        System.out.printf("[%4ds] devices: %d/%d, msg/sec: %.0f, commands: %d, broker queue: %d, mailboxes: %d, " +
+                          "dropped: %d, latency: p50 %.2fms p99 %.2fms p999 %.2fms, heap: +%dMB%n",
+          (now - started) / 1000,
+          service.getExistedDevices().size(), fleetSize,
+          (delivered - lastDelivered) * 1000D / (now - lastReport),
+          broker.getCommandCount(),
+          broker.getQueueSize(),
+          service.getDispatcher().getPendingCount(),
+          service.getDispatcher().getDroppedCount(),
+          latency.getPercentile(0.5) / 1e6, latency.getPercentile(0.99) / 1e6, latency.getPercentile(0.999) / 1e6,
+          (memory.getHeapMemoryUsage().getUsed() - heapAtStart) / (1024 * 1024));
+        lastDelivered = delivered;
+        lastReport = now;
+      }
+
+      System.gc();
+      System.out.printf("Done. Heap growth after GC: %dMB, %s%n",
+        (memory.getHeapMemoryUsage().getUsed() - heapAtStart) / (1024 * 1024), service.getMetrics().getLatencies());
+    }
+  }
+
+  static int arg(String[] args, int index, int defaultValue) {
+    return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+  }
+}
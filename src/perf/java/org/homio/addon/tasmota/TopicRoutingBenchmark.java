@@ -0,0 +1,77 @@
+package org.homio.addon.tasmota;
+
+import org.homio.addon.tasmota.TasmotaProjectService.MatchDeviceData;
+import org.homio.addon.tasmota.TasmotaProjectService.ParsedTopic;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Topic parsing and topic -> device routing over fleet with mixed FullTopic templates
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopicRoutingBenchmark {
+
+  @Param({"10", "1000", "10000"})
+  private int fleetSize;
+
+  private final TasmotaTopicRouter router = new TasmotaTopicRouter();
+  private String[] topics;
+  private String[] fullTopics;
+  private String[] unknownTopics;
+  private int next;
+
+  @Setup
+  public void setup() {
+    TasmotaFleet fleet = new TasmotaFleet(fleetSize);
+    List<TasmotaDeviceEntity> devices = fleet.getDevices();
+    topics = new String[devices.size()];
+    fullTopics = new String[devices.size()];
+    unknownTopics = new String[devices.size()];
+    for (int i = 0; i < devices.size(); i++) {
+      TasmotaDeviceEntity device = devices.get(i);
+      router.register(device);
+      topics[i] = TasmotaFleet.topic(device, "tele", i % 2 == 0 ? "STATE" : "SENSOR");
+      fullTopics[i] = device.getFullTopic();
+      unknownTopics[i] = "tele/unknown_%06X/SENSOR".formatted(i);
+    }
+  }
+
+  @Benchmark
+  public MatchDeviceData route() {
+    return router.route(topics[nextIndex()]);
+  }
+
+  @Benchmark
+  public MatchDeviceData routeUnknown() {
+    return router.route(unknownTopics[nextIndex()]);
+  }
+
+  @Benchmark
+  public ParsedTopic parseTopic() {
+    int index = nextIndex();
+    return TasmotaProjectService.parseTopic(fullTopics[index], topics[index]);
+  }
+
+  private int nextIndex() {
+    int index = next;
+    next = index + 1 == fleetSize ? 0 : index + 1;
+    return index;
+  }
+}